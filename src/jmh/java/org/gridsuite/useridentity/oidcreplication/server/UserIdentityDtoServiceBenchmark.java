@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Parsing of idtokens as sent by the identity providers we know, with and without the storage of the names.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserIdentityDtoServiceBenchmark {
+
+    @Param({"azure", "keycloak", "generic", "large"})
+    String payload;
+
+    private UserIdentityDtoService userIdentityDtoService;
+    private UserIdentityEntity userIdentityEntity;
+
+    static Map<String, Object> azureIdtoken() {
+        Map<String, Object> idtoken = new LinkedHashMap<>();
+        idtoken.put("aud", "6731de76-14a6-49ae-97bc-6eba6914391e");
+        idtoken.put("iss", "https://login.microsoftonline.com/b9419818-09af-49c2-b0c3-653adc1f376e/v2.0");
+        idtoken.put("iat", 1729236154);
+        idtoken.put("nbf", 1729236154);
+        idtoken.put("exp", 1729240054);
+        idtoken.put("aio", "AWQAm/8YAAAA7gsx6Qg3B0A5kGEWlVHcYTbOzO4QbhmH0lTsVAZjGm0vM5kB6ln3ZCaVS8tu8Nrm");
+        idtoken.put("name", "Jean-Baptiste de la Fontaine");
+        idtoken.put("nonce", "ea9b82bd-7c48-4ef1-a2cc-83b1e5b7a3a3");
+        idtoken.put("oid", "00000000-0000-0000-66f3-3332eca7ea81");
+        idtoken.put("preferred_username", "jean-baptiste.delafontaine@example.com");
+        idtoken.put("rh", "0.ARoAv4j5cvGGr0GRqy180BHbR1ZzmRa3a3BKm7xuumkUOR4aAPk.");
+        idtoken.put("sid", "00162a17-5b0f-4b45-a4c7-5f0c24a06d12");
+        idtoken.put("sub", "AAAAAAAAAAAAAAAAAAAAAIkzqFVrSaSaFHy782bbtaQ");
+        idtoken.put("tid", "b9419818-09af-49c2-b0c3-653adc1f376e");
+        idtoken.put("uti", "AbFbJfJWvUuHJlzsK7OaAA");
+        idtoken.put("ver", "2.0");
+        return idtoken;
+    }
+
+    static Map<String, Object> keycloakIdtoken() {
+        Map<String, Object> idtoken = new LinkedHashMap<>();
+        idtoken.put("exp", 1729240054);
+        idtoken.put("iat", 1729236454);
+        idtoken.put("auth_time", 1729236453);
+        idtoken.put("jti", "6c1a2fa4-5b7e-4d57-93b5-0c1d6f4a4d51");
+        idtoken.put("iss", "https://keycloak.example.com/realms/gridsuite");
+        idtoken.put("aud", "gridsuite-app");
+        idtoken.put("sub", "f8a1f0b2-8c59-4d5e-bb4e-1d2a4e3c9f10");
+        idtoken.put("typ", "ID");
+        idtoken.put("azp", "gridsuite-app");
+        idtoken.put("nonce", "0394852-3190485-2490358");
+        idtoken.put("session_state", "8d5a5e9c-2b7a-4c68-b1e3-0f1a2b3c4d5e");
+        idtoken.put("at_hash", "TbJX3kYpYQEa2Cw3h5lKiw");
+        idtoken.put("acr", "1");
+        idtoken.put("sid", "8d5a5e9c-2b7a-4c68-b1e3-0f1a2b3c4d5e");
+        idtoken.put("email_verified", true);
+        idtoken.put("name", "Marie Curie");
+        idtoken.put("preferred_username", "mcurie");
+        idtoken.put("given_name", "Marie");
+        idtoken.put("family_name", "Curie");
+        idtoken.put("email", "marie.curie@example.com");
+        return idtoken;
+    }
+
+    static Map<String, Object> genericIdtoken() {
+        return Map.of("sub", "jdoe", "name", "John Doe");
+    }
+
+    // the claims come after big nested claims, some providers add the groups of the user
+    static Map<String, Object> largeIdtoken() {
+        Map<String, Object> idtoken = new LinkedHashMap<>();
+        List<String> groups = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            groups.add("/organisation/department-" + i + "/team");
+        }
+        idtoken.put("groups", groups);
+        idtoken.put("realm_access", Map.of("roles", List.of("offline_access", "uma_authorization", "default-roles-gridsuite")));
+        idtoken.put("resource_access", Map.of("account", Map.of("roles", List.of("manage-account", "view-profile"))));
+        idtoken.putAll(keycloakIdtoken());
+        return idtoken;
+    }
+
+    static Map<String, Object> idtoken(String payload) {
+        return switch (payload) {
+            case "azure" -> azureIdtoken();
+            case "keycloak" -> keycloakIdtoken();
+            case "generic" -> genericIdtoken();
+            case "large" -> largeIdtoken();
+            default -> throw new IllegalArgumentException(payload);
+        };
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        userIdentityDtoService = new UserIdentityDtoService(objectMapper, new SimpleMeterRegistry(),
+                UserIdentityNamesBenchmark.defaultNamesRules(), UserIdentityDtoService.IdtokenStorage.RAW, false, false);
+        userIdentityEntity = new UserIdentityEntity("sub1", objectMapper.writeValueAsString(idtoken(payload)));
+    }
+
+    @Benchmark
+    public UserIdentity toDto() {
+        return userIdentityDtoService.toDto(userIdentityEntity);
+    }
+
+    // the save path, also computes the content hash
+    @Benchmark
+    public UserIdentity deriveNames() {
+        return userIdentityDtoService.deriveNames(userIdentityEntity);
+    }
+}
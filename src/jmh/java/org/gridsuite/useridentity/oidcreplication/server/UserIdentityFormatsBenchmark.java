@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentitiesResult;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentityError;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Encoding by the server and decoding by the clients of the batch responses in the
+ * negotiated formats, see UserIdentityControllerTest for their sizes.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserIdentityFormatsBenchmark {
+
+    @Param({"json", "cbor", "smile"})
+    String format;
+
+    @Param({"50", "500"})
+    int identities;
+
+    private ObjectMapper objectMapper;
+    private UserIdentitiesResult userIdentitiesResult;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        objectMapper = switch (format) {
+            case "json" -> new ObjectMapper();
+            case "cbor" -> new ObjectMapper(new CBORFactory());
+            case "smile" -> new ObjectMapper(new SmileFactory());
+            default -> throw new IllegalArgumentException(format);
+        };
+        Map<String, UserIdentity> data = new HashMap<>();
+        for (int i = 0; i < identities; i++) {
+            // azure like subs, shared first names
+            String sub = "AAAAAAAAAAAAAAAAAAAAAM" + String.format("%022d", i);
+            data.put(sub, new UserIdentity(sub, "first" + i % 50, "last" + i));
+        }
+        userIdentitiesResult = new UserIdentitiesResult(data, Map.of("unknown", new UserIdentityError("unknown", "INVALID_USER_ID")));
+        encoded = objectMapper.writeValueAsBytes(userIdentitiesResult);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return objectMapper.writeValueAsBytes(userIdentitiesResult);
+    }
+
+    @Benchmark
+    public UserIdentitiesResult decode() throws IOException {
+        return objectMapper.readValue(encoded, UserIdentitiesResult.class);
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.ConfigurationPropertySources;
+import org.springframework.boot.env.YamlPropertySourceLoader;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.io.ClassPathResource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * The first name and last name rules alone, on the already extracted claims.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserIdentityNamesBenchmark {
+
+    @Param({"givenAndFamilyNames", "twoWordsName", "manyWordsName", "trailingSpacesName", "singleWordName",
+        "nickname", "preferredUsername", "subOnly", "issuerRules"})
+    String claims;
+
+    private UserIdentityDtoService userIdentityDtoService;
+    private IdTokenClaims idTokenClaims;
+
+    private static final String ISS = "https://login.microsoftonline.com/9188040d-6c67-4c5b-b112-36a304b66dad/v2.0";
+
+    // the rules of the application configuration
+    static UserIdentityNamesRules defaultNamesRules() throws IOException {
+        List<PropertySource<?>> propertySources = new YamlPropertySourceLoader()
+                .load("application", new ClassPathResource("config/application.yaml"));
+        return new Binder(ConfigurationPropertySources.from(propertySources))
+                .bind("user-identity.names-rules", UserIdentityNamesRules.class).get();
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        UserIdentityNamesRules defaultNamesRules = defaultNamesRules();
+        UserIdentityNamesRules namesRules = new UserIdentityNamesRules(defaultNamesRules.defaults(), List.of(
+                new UserIdentityNamesRules.IssuerRules(ISS, List.of("name:first-word", "preferred_username"), List.of("name:last-word", "sub"))));
+        userIdentityDtoService = new UserIdentityDtoService(new ObjectMapper(), new SimpleMeterRegistry(), namesRules,
+                UserIdentityDtoService.IdtokenStorage.RAW, false, false);
+        // name, givenName, familyName, middleName, nickname, preferredUsername, sub, iss
+        idTokenClaims = switch (claims) {
+            case "givenAndFamilyNames" -> new IdTokenClaims("Marie Curie", "Marie", "Curie", null, null, "mcurie", "sub1", null);
+            case "twoWordsName" -> new IdTokenClaims("Marie Curie", null, null, null, null, "mcurie", "sub1", null);
+            case "manyWordsName" -> new IdTokenClaims("Jean Baptiste Poquelin dit Moliere", null, null, null, null, null, "sub1", null);
+            case "trailingSpacesName" -> new IdTokenClaims("Marie Curie      ", null, null, null, null, null, "sub1", null);
+            case "singleWordName" -> new IdTokenClaims("Marie", null, null, null, null, null, "sub1", null);
+            case "nickname" -> new IdTokenClaims(null, null, null, "Salomea", "Mania", null, "sub1", null);
+            case "preferredUsername" -> new IdTokenClaims(null, null, null, null, null, "mcurie", "sub1", null);
+            case "subOnly" -> new IdTokenClaims(null, null, null, null, null, null, null, null);
+            case "issuerRules" -> new IdTokenClaims("Marie Curie", null, null, null, null, "mcurie", "sub1", ISS);
+            default -> throw new IllegalArgumentException(claims);
+        };
+    }
+
+    @Benchmark
+    public UserIdentity computeNames() {
+        return userIdentityDtoService.toDto("sub1", idTokenClaims);
+    }
+}
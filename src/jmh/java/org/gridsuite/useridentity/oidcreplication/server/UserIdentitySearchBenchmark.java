@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Searches in the name index of many identities with generated names, the budget being
+ * under the millisecond for 500k identities.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Benchmark)
+public class UserIdentitySearchBenchmark {
+
+    private static final String[] SYLLABLES = {"ma", "ri", "e", "jean", "lu", "cie", "an", "toi", "ne", "hé", "lè", "no",
+        "pier", "re", "du", "pont", "mar", "tin", "ber", "nard", "pe", "tit", "ro", "bert", "ri", "chard", "lau", "rent", "fran", "çois"};
+
+    @Param({"500000"})
+    int identities;
+
+    @Param({"ma", "marie", "jean du", "zz"})
+    String query;
+
+    private UserIdentityNameIndex index;
+
+    private static String word(Random random) {
+        StringBuilder word = new StringBuilder();
+        int syllables = 2 + random.nextInt(2);
+        for (int i = 0; i < syllables; i++) {
+            word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        word.setCharAt(0, Character.toUpperCase(word.charAt(0)));
+        return word.toString();
+    }
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        index = new UserIdentityNameIndex();
+        for (int i = 0; i < identities; i++) {
+            index.put(new UserIdentity("sub" + i, word(random), random.nextInt(10) == 0 ? word(random) + "-" + word(random) : word(random)), true);
+        }
+        System.out.println("Index of " + index.size() + " identities, about " + index.estimatedBytes() / 1024 / 1024 + " MB");
+    }
+
+    @Benchmark
+    public List<UserIdentity> search() {
+        return index.search(query, 20);
+    }
+}
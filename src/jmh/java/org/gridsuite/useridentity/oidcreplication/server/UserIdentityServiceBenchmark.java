@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentitiesResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * getIdentities on the embedded H2 database of the tests, with the caches cleared before each
+ * call to measure the database path. 5% of the requested subs are unknown.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@State(Scope.Benchmark)
+public class UserIdentityServiceBenchmark {
+
+    private static final int INSERT_BATCH_SIZE = 5000;
+
+    @Param({"10000", "100000", "1000000"})
+    int rows;
+
+    @Param({"1", "100", "1000", "5000"})
+    int batchSize;
+
+    private ConfigurableApplicationContext context;
+    private UserIdentityService userIdentityService;
+    private CacheManager cacheManager;
+    private List<String> subs;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        context = new SpringApplicationBuilder(UserIdentityOidcReplicationApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties("testDbSuffix=" + UUID.randomUUID())
+                // the test profile logs all the sql, as arguments to override it
+                .run("--logging.level.org.hibernate.SQL=WARN",
+                    "--logging.level.org.hibernate.orm.jdbc.bind=WARN",
+                    "--logging.level.org.springframework.orm.jpa=WARN");
+        userIdentityService = context.getBean(UserIdentityService.class);
+        cacheManager = context.getBean(CacheManager.class);
+        UserIdentityRepository userIdentityRepository = context.getBean(UserIdentityRepository.class);
+        UserIdentityDtoService userIdentityDtoService = context.getBean(UserIdentityDtoService.class);
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        subs = new ArrayList<>(rows);
+        List<UserIdentityEntity> batch = new ArrayList<>(INSERT_BATCH_SIZE);
+        for (int i = 0; i < rows; i++) {
+            String sub = UUID.randomUUID().toString();
+            subs.add(sub);
+            Map<String, Object> idtoken = UserIdentityDtoServiceBenchmark.keycloakIdtoken();
+            idtoken.put("sub", sub);
+            idtoken.put("given_name", "given" + i);
+            idtoken.put("family_name", "family" + i);
+            UserIdentityEntity userIdentityEntity = new UserIdentityEntity(sub, objectMapper.writeValueAsString(idtoken));
+            userIdentityDtoService.deriveNames(userIdentityEntity);
+            batch.add(userIdentityEntity);
+            if (batch.size() == INSERT_BATCH_SIZE || i == rows - 1) {
+                userIdentityRepository.upsertAll(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Request {
+        List<String> subs;
+
+        @Setup(Level.Invocation)
+        public void setup(UserIdentityServiceBenchmark benchmark) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            subs = new ArrayList<>(benchmark.batchSize);
+            for (int i = 0; i < benchmark.batchSize; i++) {
+                subs.add(random.nextInt(20) == 0 ? "unknown" + random.nextInt()
+                        : benchmark.subs.get(random.nextInt(benchmark.subs.size())));
+            }
+            benchmark.cacheManager.getCacheNames().forEach(name -> benchmark.cacheManager.getCache(name).clear());
+        }
+    }
+
+    @Benchmark
+    public UserIdentitiesResult getIdentities(Request request) {
+        return userIdentityService.getIdentities(request.subs);
+    }
+}
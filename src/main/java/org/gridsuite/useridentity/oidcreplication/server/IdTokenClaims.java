@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+/**
+ * The top level idtoken claims used to derive the names, null when absent or not a string.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+record IdTokenClaims(
+    String name,
+    String givenName,
+    String familyName,
+    String middleName,
+    String nickname,
+    String preferredUsername,
+    String sub,
+    String iss
+) {
+
+    static final int COUNT = 8;
+
+    static final int SUB = 6;
+
+    // in the order of index
+    static final String[] NAMES = {"name", "given_name", "family_name", "middle_name", "nickname", "preferred_username", "sub", "iss"};
+
+    // -1 for the other claims
+    static int index(String claimName) {
+        return switch (claimName) {
+            case "name" -> 0;
+            case "given_name" -> 1;
+            case "family_name" -> 2;
+            case "middle_name" -> 3;
+            case "nickname" -> 4;
+            case "preferred_username" -> 5;
+            case "sub" -> SUB;
+            case "iss" -> 7;
+            default -> -1;
+        };
+    }
+
+    String get(int index) {
+        return switch (index) {
+            case 0 -> name;
+            case 1 -> givenName;
+            case 2 -> familyName;
+            case 3 -> middleName;
+            case 4 -> nickname;
+            case 5 -> preferredUsername;
+            case SUB -> sub;
+            case 7 -> iss;
+            default -> throw new IndexOutOfBoundsException(index);
+        };
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+
+/**
+ * @param eTag the etag of the identity, see {@link UserIdentityService#getIdentityETag}
+ * @param buffered true if the identity is not written yet, see {@link UserIdentityWriteBehindBuffer}
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+record SavedUserIdentity(UserIdentity userIdentity, String eTag, boolean buffered) {
+}
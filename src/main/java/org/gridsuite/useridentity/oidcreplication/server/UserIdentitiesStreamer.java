@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentitiesResult;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentityError;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Writes the same json, or cbor or smile, as a {@link UserIdentitiesResult} while the subs
+ * are resolved, chunk by chunk each in its own transaction, so that the first identities
+ * are sent before the last ones are read. The errors are written at the end.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+public class UserIdentitiesStreamer {
+
+    private final UserIdentityService userIdentityService;
+    // flushed once per chunk, not after each identity
+    private final ObjectWriter objectWriter;
+
+    public UserIdentitiesStreamer(UserIdentityService userIdentityService, ObjectMapper objectMapper) {
+        this.userIdentityService = userIdentityService;
+        this.objectWriter = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    // the json factory of the mapper or a binary one, the same serializers write all the formats
+    public void writeIdentities(Collection<String> subs, JsonFactory jsonFactory, OutputStream outputStream) throws IOException {
+        List<String> distinctSubs = new ArrayList<>(new LinkedHashSet<>(subs));
+        List<UserIdentityError> errors = new ArrayList<>();
+        try (JsonGenerator generator = jsonFactory.createGenerator(outputStream)) {
+            // the servlet container closes the response stream
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            // like UserIdentitiesResult, no data field when there are no identities
+            boolean dataStarted = false;
+            for (int i = 0; i < distinctSubs.size(); i += UserIdentityService.SUBS_CHUNK_SIZE) {
+                List<String> chunk = distinctSubs.subList(i, Math.min(i + UserIdentityService.SUBS_CHUNK_SIZE, distinctSubs.size()));
+                UserIdentitiesResult result = userIdentityService.getIdentities(chunk);
+                Map<String, UserIdentity> data = result.getData() != null ? result.getData() : Map.of();
+                Map<String, UserIdentityError> chunkErrors = result.getErrors() != null ? result.getErrors() : Map.of();
+                for (String sub : chunk) {
+                    UserIdentity userIdentity = data.get(sub);
+                    if (userIdentity != null) {
+                        if (!dataStarted) {
+                            generator.writeObjectFieldStart("data");
+                            dataStarted = true;
+                        }
+                        generator.writeFieldName(sub);
+                        objectWriter.writeValue(generator, userIdentity);
+                    } else if (chunkErrors.containsKey(sub)) {
+                        errors.add(chunkErrors.get(sub));
+                    }
+                }
+                generator.flush();
+            }
+            if (dataStarted) {
+                generator.writeEndObject();
+            }
+            if (!errors.isEmpty()) {
+                generator.writeObjectFieldStart("errors");
+                for (UserIdentityError error : errors) {
+                    generator.writeFieldName(error.getSub());
+                    objectWriter.writeValue(generator, error);
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+        }
+    }
+}
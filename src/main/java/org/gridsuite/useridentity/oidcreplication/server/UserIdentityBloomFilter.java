@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread safe bloom filter of strings: {@link #mightContain(String)} is always true for
+ * the added strings and false for the others except with the chosen false positive rate.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+final class UserIdentityBloomFilter {
+
+    private static final double LN2 = Math.log(2);
+
+    private final AtomicLongArray words;
+    private final long bitSize;
+    private final int hashCount;
+    private final LongAdder setBits = new LongAdder();
+
+    private UserIdentityBloomFilter(long bitSize, int hashCount) {
+        this.words = new AtomicLongArray((int) ((bitSize + Long.SIZE - 1) / Long.SIZE));
+        this.bitSize = bitSize;
+        this.hashCount = hashCount;
+    }
+
+    // optimal sizes for the expected number of strings, see https://en.wikipedia.org/wiki/Bloom_filter
+    static UserIdentityBloomFilter create(long expectedInsertions, double falsePositiveRate) {
+        long n = Math.max(1, expectedInsertions);
+        long bitSize = Math.max(Long.SIZE, (long) Math.ceil(-n * Math.log(falsePositiveRate) / (LN2 * LN2)));
+        // the indexes are computed on ints
+        bitSize = Math.min(bitSize, (long) Integer.MAX_VALUE * Long.SIZE);
+        int hashCount = Math.max(1, (int) Math.round((double) bitSize / n * LN2));
+        return new UserIdentityBloomFilter(bitSize, hashCount);
+    }
+
+    // 64 bits FNV-1a on the chars followed by the murmur3 finalizer for a good avalanche
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    // The hashCount indexes are derived from the two halves of a single hash, see
+    // Kirsch and Mitzenmacher "Less Hashing, Same Performance: Building a Better Bloom Filter"
+    private long index(long hash, int i) {
+        long combined = (hash & 0xffffffffL) + i * (hash >>> 32);
+        return Math.floorMod(combined, bitSize);
+    }
+
+    void add(String value) {
+        long hash = hash(value);
+        for (int i = 0; i < hashCount; i++) {
+            long index = index(hash, i);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long previous = words.getAndAccumulate(word, mask, (current, bit) -> current | bit);
+            if ((previous & mask) == 0) {
+                setBits.increment();
+            }
+        }
+    }
+
+    boolean mightContain(String value) {
+        long hash = hash(value);
+        for (int i = 0; i < hashCount; i++) {
+            long index = index(hash, i);
+            if ((words.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long bitSize() {
+        return bitSize;
+    }
+
+    // the probability that all the bits of an unknown string are set
+    double expectedFalsePositiveRate() {
+        return Math.pow((double) setBits.sum() / bitSize, hashCount);
+    }
+}
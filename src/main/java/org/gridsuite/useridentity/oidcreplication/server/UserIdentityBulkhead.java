@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Bounds the concurrency of a path of the endpoints: at most maxConcurrent calls run, at most
+ * maxQueue calls wait up to maxWait for their turn, in order, and the others are rejected
+ * right away instead of piling up on the connection pool. The waiting threads are parked by
+ * the semaphore, which also releases the carriers of virtual threads.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+final class UserIdentityBulkhead {
+
+    @FunctionalInterface
+    interface Call<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    static final class RejectedException extends RuntimeException {
+
+        private final transient Duration retryAfter;
+
+        RejectedException(String message, Duration retryAfter) {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+
+        Duration getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+    private final String path;
+    private final int maxConcurrent;
+    private final int maxQueue;
+    private final Duration maxWait;
+    private final Duration retryAfter;
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final Timer waitTimer;
+    private final Counter queueFullCounter;
+    private final Counter timeoutCounter;
+
+    UserIdentityBulkhead(String path, int maxConcurrent, int maxQueue, Duration maxWait, Duration retryAfter,
+                         MeterRegistry meterRegistry) {
+        this.path = path;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueue = maxQueue;
+        this.maxWait = maxWait;
+        this.retryAfter = retryAfter;
+        // fair for the waiting calls, a call arriving when a permit is free still takes it
+        this.permits = new Semaphore(maxConcurrent, true);
+
+        waitTimer = Timer.builder("useridentity.bulkhead.wait")
+                .description("Time waited by the calls for a permit of the bulkhead")
+                .tag("path", path)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        queueFullCounter = rejectedCounter("queue-full", meterRegistry);
+        timeoutCounter = rejectedCounter("timeout", meterRegistry);
+        Gauge.builder("useridentity.bulkhead.active", this, bulkhead -> bulkhead.maxConcurrent - bulkhead.permits.availablePermits())
+                .description("Number of calls running in the bulkhead")
+                .tag("path", path)
+                .register(meterRegistry);
+        Gauge.builder("useridentity.bulkhead.queue", queued, AtomicInteger::get)
+                .description("Number of calls waiting for a permit of the bulkhead")
+                .tag("path", path)
+                .register(meterRegistry);
+    }
+
+    private Counter rejectedCounter(String reason, MeterRegistry meterRegistry) {
+        return Counter.builder("useridentity.bulkhead.rejected")
+                .description("Number of calls rejected by the bulkhead")
+                .tag("path", path)
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Takes a permit, to {@link #release} after the call.
+     * @throws RejectedException when the queue is full or after maxWait
+     */
+    void acquire() {
+        if (permits.tryAcquire()) {
+            waitTimer.record(0, TimeUnit.NANOSECONDS);
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueue) {
+            queued.decrementAndGet();
+            queueFullCounter.increment();
+            throw new RejectedException("Too many " + path + " calls waiting", retryAfter);
+        }
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(maxWait.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        } finally {
+            queued.decrementAndGet();
+            waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        if (!acquired) {
+            timeoutCounter.increment();
+            throw new RejectedException("No " + path + " permit after " + maxWait.toMillis() + " ms", retryAfter);
+        }
+    }
+
+    void release() {
+        permits.release();
+    }
+
+    /**
+     * Takes a permit like {@link #acquire}, released by the first run of the returned release,
+     * for the calls ending in any of several callbacks.
+     */
+    Runnable acquireReleasable() {
+        acquire();
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                release();
+            }
+        };
+    }
+
+    <T, E extends Exception> T call(Call<T, E> call) throws E {
+        acquire();
+        try {
+            return call.call();
+        } finally {
+            release();
+        }
+    }
+}
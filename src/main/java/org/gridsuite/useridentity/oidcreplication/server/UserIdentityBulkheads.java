@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.time.Duration;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Separate bulkheads for the reads and the writes of the endpoints (user-identity.bulkheads),
+ * so that a login storm of saves can't take all the connections and the threads and slow
+ * down the lookups: the excess saves are answered with 429 and a Retry-After instead.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+public class UserIdentityBulkheads {
+
+    private final UserIdentityBulkhead read;
+    private final UserIdentityBulkhead write;
+
+    public UserIdentityBulkheads(
+        @Value("${user-identity.bulkheads.read.max-concurrent}") int readMaxConcurrent,
+        @Value("${user-identity.bulkheads.read.max-queue}") int readMaxQueue,
+        @Value("${user-identity.bulkheads.read.max-wait}") Duration readMaxWait,
+        @Value("${user-identity.bulkheads.write.max-concurrent}") int writeMaxConcurrent,
+        @Value("${user-identity.bulkheads.write.max-queue}") int writeMaxQueue,
+        @Value("${user-identity.bulkheads.write.max-wait}") Duration writeMaxWait,
+        @Value("${user-identity.bulkheads.retry-after}") Duration retryAfter,
+        MeterRegistry meterRegistry
+    ) {
+        read = new UserIdentityBulkhead("read", readMaxConcurrent, readMaxQueue, readMaxWait, retryAfter, meterRegistry);
+        write = new UserIdentityBulkhead("write", writeMaxConcurrent, writeMaxQueue, writeMaxWait, retryAfter, meterRegistry);
+    }
+
+    UserIdentityBulkhead read() {
+        return read;
+    }
+
+    UserIdentityBulkhead write() {
+        return write;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Evicts the identities changed on the other nodes from the local caches
+ * and from the lookups being coalesced, adds them to the known subs and
+ * reads their new names for the search and the replica. With the read datasource,
+ * the reads go to the primary for max-lag from then on, the replica may not have
+ * the changes yet.
+ * A read started before the eviction may still cache the previous identity,
+ * this is bounded by the caches ttl.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+public class UserIdentityCacheInvalidator implements UserIdentityInvalidationBus.Listener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserIdentityCacheInvalidator.class);
+
+    private final Cache userIdentitiesCache;
+    private final Cache userIdentityETagsCache;
+    private final Cache userIdentityJsonsCache;
+    private final UserIdentityKnownSubs userIdentityKnownSubs;
+    private final UserIdentitySearch userIdentitySearch;
+    private final UserIdentityReplica userIdentityReplica;
+    private final UserIdentityLookupCoalescer userIdentityLookupCoalescer;
+    // null without the read datasource
+    private final UserIdentityReadRoutingDataSource readRoutingDataSource;
+
+    private final Timer lagTimer;
+    private final Counter invalidatedCounter;
+    private final Counter missedCounter;
+
+    public UserIdentityCacheInvalidator(UserIdentityInvalidationBus userIdentityInvalidationBus,
+                                        CacheManager cacheManager,
+                                        UserIdentityKnownSubs userIdentityKnownSubs,
+                                        UserIdentitySearch userIdentitySearch,
+                                        UserIdentityReplica userIdentityReplica,
+                                        UserIdentityLookupCoalescer userIdentityLookupCoalescer,
+                                        ObjectProvider<DataSource> dataSource,
+                                        MeterRegistry meterRegistry) {
+        this.userIdentitiesCache = cacheManager.getCache(UserIdentityService.USER_IDENTITIES_CACHE);
+        this.userIdentityETagsCache = cacheManager.getCache(UserIdentityService.USER_IDENTITY_ETAGS_CACHE);
+        this.userIdentityJsonsCache = cacheManager.getCache(UserIdentityJsons.USER_IDENTITY_JSONS_CACHE);
+        this.userIdentityKnownSubs = userIdentityKnownSubs;
+        this.userIdentitySearch = userIdentitySearch;
+        this.userIdentityReplica = userIdentityReplica;
+        this.userIdentityLookupCoalescer = userIdentityLookupCoalescer;
+        this.readRoutingDataSource = Optional.ofNullable(dataSource.getIfAvailable())
+                .flatMap(UserIdentityReadRoutingDataSource::find).orElse(null);
+
+        // includes the clock difference between the nodes
+        lagTimer = Timer.builder("useridentity.invalidation.lag")
+                .description("Time between the publication of an invalidation and its reception")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        invalidatedCounter = Counter.builder("useridentity.invalidation.received")
+                .description("Number of subs invalidated by the other nodes")
+                .register(meterRegistry);
+        missedCounter = Counter.builder("useridentity.invalidation.missed")
+                .description("Number of full cache invalidations after possibly missed messages")
+                .register(meterRegistry);
+
+        userIdentityInvalidationBus.subscribe(this);
+    }
+
+    // before the evictions, the next lookups and the refreshes must not read the previous identities
+    private void readFromPrimary() {
+        if (readRoutingDataSource != null) {
+            readRoutingDataSource.readFromPrimaryForMaxLag();
+        }
+    }
+
+    @Override
+    public void onInvalidation(Collection<String> subs, long publishedAtMillis) {
+        readFromPrimary();
+        userIdentityLookupCoalescer.forget(subs);
+        for (String sub : subs) {
+            userIdentitiesCache.evict(sub);
+            userIdentityETagsCache.evict(sub);
+            userIdentityJsonsCache.evict(sub);
+            userIdentityKnownSubs.add(sub);
+        }
+        userIdentitySearch.refresh(subs);
+        userIdentityReplica.refresh(subs);
+        invalidatedCounter.increment(subs.size());
+        lagTimer.record(Math.max(0, System.currentTimeMillis() - publishedAtMillis), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onMissedInvalidations() {
+        readFromPrimary();
+        userIdentityLookupCoalescer.forgetAll();
+        userIdentitiesCache.clear();
+        userIdentityETagsCache.clear();
+        userIdentityJsonsCache.clear();
+        userIdentityKnownSubs.requestRebuild();
+        userIdentitySearch.requestRebuild();
+        userIdentityReplica.requestCatchUp();
+        missedCounter.increment();
+        LOGGER.info("Cleared the user identity caches");
+    }
+}
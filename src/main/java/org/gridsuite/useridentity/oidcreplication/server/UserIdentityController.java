@@ -6,26 +6,55 @@
  */
 package org.gridsuite.useridentity.oidcreplication.server;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
 
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentitiesImportResult;
 import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentitiesResult;
 import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
-import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentityError;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentityChanges;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.HttpMediaTypeNotAcceptableException;
+import org.springframework.web.accept.ContentNegotiationManager;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
 
 /**
@@ -35,72 +64,239 @@ import io.swagger.v3.oas.annotations.tags.Tag;
 @RequestMapping(value = "/v1")
 @Tag(name = "User Identity Oidc Replication Server", description = "User identity Oidc replication server")
 public class UserIdentityController {
+
+    // The binary formats for the other services, the browsers still get json by default
+    static final String APPLICATION_SMILE_VALUE = "application/x-jackson-smile";
+    static final MediaType APPLICATION_SMILE = MediaType.valueOf(APPLICATION_SMILE_VALUE);
+    private static final Map<MediaType, JsonFactory> BINARY_FACTORIES = Map.of(
+            MediaType.APPLICATION_CBOR, new CBORFactory(),
+            APPLICATION_SMILE, new SmileFactory());
+    private static final String READ_PERMIT_INTERCEPTOR_KEY = UserIdentityController.class.getName() + ".readPermit";
+
     private final UserIdentityService userIdentityService;
+    private final UserIdentityImporter userIdentityImporter;
+    private final UserIdentityExporter userIdentityExporter;
+    private final UserIdentitiesStreamer userIdentitiesStreamer;
+    private final UserIdentitySearch userIdentitySearch;
+    private final UserIdentityJsons userIdentityJsons;
+    private final UserIdentityBulkheads userIdentityBulkheads;
+    // from the Accept header
+    private final ContentNegotiationManager contentNegotiationManager = new ContentNegotiationManager();
+    private final ObjectMapper objectMapper;
+    private final Duration exportTimeout;
+    private final Duration lookupTimeout;
 
-    public UserIdentityController(UserIdentityService userIdentityService) {
+    public UserIdentityController(UserIdentityService userIdentityService,
+                                  UserIdentityImporter userIdentityImporter,
+                                  UserIdentityExporter userIdentityExporter,
+                                  UserIdentitiesStreamer userIdentitiesStreamer,
+                                  UserIdentitySearch userIdentitySearch,
+                                  UserIdentityJsons userIdentityJsons,
+                                  UserIdentityBulkheads userIdentityBulkheads,
+                                  ObjectMapper objectMapper,
+                                  @Value("${user-identity.streams.export-timeout}") Duration exportTimeout,
+                                  @Value("${user-identity.streams.lookup-timeout}") Duration lookupTimeout) {
         this.userIdentityService = userIdentityService;
+        this.userIdentityImporter = userIdentityImporter;
+        this.userIdentityExporter = userIdentityExporter;
+        this.userIdentitiesStreamer = userIdentitiesStreamer;
+        this.userIdentitySearch = userIdentitySearch;
+        this.userIdentityJsons = userIdentityJsons;
+        this.userIdentityBulkheads = userIdentityBulkheads;
+        this.objectMapper = objectMapper;
+        this.exportTimeout = exportTimeout;
+        this.lookupTimeout = lookupTimeout;
     }
 
-    @GetMapping(value = "/users/identities/{sub}")
-    @Operation(summary = "Get User identity from the OIDC sub")
-    public ResponseEntity<UserIdentity> getIdentity(@PathVariable("sub") String sub) {
-        return ResponseEntity.of(userIdentityService.getIdentity(sub));
+    // The streamed responses are async requests, cut off after spring.mvc.async.request-timeout
+    // or the 30s of the container otherwise. To call before returning the stream
+    private static void setStreamTimeout(NativeWebRequest request, Duration timeout) {
+        if (request instanceof AsyncWebRequest asyncWebRequest) {
+            asyncWebRequest.setTimeout(timeout.isNegative() ? -1 : timeout.toMillis());
+        }
     }
 
-    private Optional<String> getUserSpecificErrorCode(Exception e) {
-        Throwable cause = e.getCause();
-        if (cause != null && e.getCause() instanceof JsonProcessingException) {
-            return Optional.of(cause.getClass().getSimpleName());
-        } else {
-            return Optional.empty();
+    // The binary format preferred over json by the Accept header, if any. The json responses
+    // are written from the serialized bytes, the binary ones by the cbor and smile converters.
+    private Optional<MediaType> getBinaryMediaType(NativeWebRequest request) throws HttpMediaTypeNotAcceptableException {
+        for (MediaType accepted : contentNegotiationManager.resolveMediaTypes(request)) {
+            if (accepted.isCompatibleWith(MediaType.APPLICATION_JSON)) {
+                return Optional.empty();
+            }
+            for (MediaType binaryMediaType : BINARY_FACTORIES.keySet()) {
+                if (binaryMediaType.isCompatibleWith(accepted)) {
+                    return Optional.of(binaryMediaType);
+                }
+            }
         }
+        return Optional.empty();
+    }
+
+    private ResponseEntity<Object> negotiated(ResponseEntity.BodyBuilder response, Optional<MediaType> binaryMediaType,
+                                              Supplier<Object> body, Supplier<byte[]> json) {
+        response.varyBy(HttpHeaders.ACCEPT);
+        return binaryMediaType.isPresent()
+                ? response.contentType(binaryMediaType.get()).body(body.get())
+                : response.contentType(MediaType.APPLICATION_JSON).body(json.get());
+    }
+
+    @ExceptionHandler(UserIdentityBulkhead.RejectedException.class)
+    public ResponseEntity<Void> rejected(UserIdentityBulkhead.RejectedException e) {
+        // in whole seconds
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, (e.getRetryAfter().toMillis() + 999) / 1000)))
+                .build();
+    }
+
+    @GetMapping(value = "/users/identities/{sub}")
+    @Operation(summary = "Get User identity from the OIDC sub")
+    @ApiResponse(responseCode = "200", content = @Content(schema = @Schema(implementation = UserIdentity.class)))
+    @ApiResponse(responseCode = "304", description = "The user identity matches the If-None-Match etag")
+    @ApiResponse(responseCode = "429", description = "Too many concurrent reads, retry after the Retry-After seconds")
+    public ResponseEntity<Object> getIdentity(@PathVariable("sub") String sub, NativeWebRequest request)
+            throws HttpMediaTypeNotAcceptableException {
+        return userIdentityBulkheads.read().call(() -> {
+            // check the etag first to avoid building the identity
+            Optional<String> eTag = userIdentityService.getIdentityETag(sub);
+            if (eTag.isPresent() && request.checkNotModified(eTag.get())) {
+                return null; // 304 already prepared by checkNotModified
+            }
+            Optional<MediaType> binaryMediaType = getBinaryMediaType(request);
+            // the json of an unchanged identity is written as cached, without building the identity
+            Optional<byte[]> cachedJson = binaryMediaType.isEmpty()
+                    ? eTag.flatMap(tag -> userIdentityJsons.getJson(sub, tag)) : Optional.empty();
+            if (cachedJson.isPresent()) {
+                return ResponseEntity.ok().eTag(eTag.get()).varyBy(HttpHeaders.ACCEPT)
+                        .contentType(MediaType.APPLICATION_JSON).body(cachedJson.get());
+            }
+            Optional<UserIdentity> userIdentity = userIdentityService.getIdentity(sub);
+            if (userIdentity.isEmpty()) {
+                return ResponseEntity.notFound().build();
+            }
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            eTag.ifPresent(response::eTag);
+            return negotiated(response, binaryMediaType, userIdentity::get,
+                () -> userIdentityJsons.put(userIdentity.get(), eTag.orElse(null)));
+        });
     }
 
     @GetMapping(value = "/users/identities")
     @Operation(summary = "Get User identities from the OIDC subs")
-    public UserIdentitiesResult getIdentities(@RequestParam("subs") List<String> subs) {
-        Map<String, UserIdentity> data = new HashMap<>();
-        Map<String, UserIdentityError> errors = new HashMap<>();
-
-        for (String sub : subs) {
-            try {
-                Optional<UserIdentity> userIdentity = userIdentityService.getIdentity(sub);
-                if (userIdentity.isPresent()) {
-                    data.put(sub, userIdentity.get());
-                } else {
-                    // Error objects in the response for exceptions related to this nni only
-                    // and continue with the other requested nnis.
-                    // TODO for this impl this may be a nonexisting user, or a user that has not yet
-                    // stored its idtoken
-                    errors.put(sub, new UserIdentityError(sub, "INVALID_USER_ID"));
-                }
-            } catch (Exception e) {
-                Optional<String> errorCode = getUserSpecificErrorCode(e);
-                if (errorCode.isPresent()) {
-                    // if we want we can standardize error codes instead of use the classname
-                    errors.put(sub, new UserIdentityError(sub, errorCode.get()));
-                } else {
-                    // abort and use spring boot default exception handling for all other
-                    // exceptions since they will probably occur again
-                    // for the subsequent nnis.
-                    throw e;
-                }
+    @ApiResponse(responseCode = "200", content = @Content(schema = @Schema(implementation = UserIdentitiesResult.class)))
+    @ApiResponse(responseCode = "304", description = "The user identities match the If-None-Match etag")
+    @ApiResponse(responseCode = "429", description = "Too many concurrent reads, retry after the Retry-After seconds")
+    public ResponseEntity<Object> getIdentities(@RequestParam("subs") List<String> subs, NativeWebRequest request)
+            throws HttpMediaTypeNotAcceptableException {
+        return userIdentityBulkheads.read().call(() -> {
+            Set<String> distinctSubs = new LinkedHashSet<>(subs);
+            Map<String, Optional<String>> eTags = userIdentityService.getIdentityETags(distinctSubs);
+            String eTag = userIdentityService.getIdentitiesETag(distinctSubs, eTags);
+            if (request.checkNotModified(eTag)) {
+                return null; // 304 already prepared by checkNotModified
             }
-        }
+            // the json from the cached jsons of the unchanged identities
+            return negotiated(ResponseEntity.ok().eTag(eTag), getBinaryMediaType(request),
+                () -> userIdentityService.getIdentities(distinctSubs), () -> userIdentityJsons.toJson(distinctSubs, eTags));
+        });
+    }
 
-        UserIdentitiesResult userIdentitiesResult = new UserIdentitiesResult();
-        if (data.size() > 0) {
-            userIdentitiesResult.setData(data);
-        }
-        if (errors.size() > 0) {
-            userIdentitiesResult.setErrors(errors);
-        }
-        return userIdentitiesResult;
+    // Same as the GET, for the lists of subs too long for an url
+    @PostMapping(value = "/users/identities",
+            consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    @Operation(summary = "Get the user identities of a json list of subs, streamed as they are read")
+    @ApiResponse(responseCode = "429", description = "Too many concurrent reads, retry after the Retry-After seconds")
+    public ResponseEntity<StreamingResponseBody> findIdentities(@RequestBody List<String> subs, NativeWebRequest request)
+            throws HttpMediaTypeNotAcceptableException {
+        MediaType mediaType = getBinaryMediaType(request).orElse(MediaType.APPLICATION_JSON);
+        JsonFactory jsonFactory = BINARY_FACTORIES.getOrDefault(mediaType, objectMapper.getFactory());
+        // rejected before the response starts, held until the end of the stream. Also released
+        // at the completion of the async request, the body may never run after a timeout or an error
+        Runnable release = userIdentityBulkheads.read().acquireReleasable();
+        setStreamTimeout(request, lookupTimeout);
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(READ_PERMIT_INTERCEPTOR_KEY,
+            new CallableProcessingInterceptor() {
+                @Override
+                public <T> void afterCompletion(NativeWebRequest completedRequest, Callable<T> task) {
+                    release.run();
+                }
+            });
+        return ResponseEntity.ok()
+                .contentType(mediaType)
+                .varyBy(HttpHeaders.ACCEPT)
+                .body(outputStream -> {
+                    try {
+                        userIdentitiesStreamer.writeIdentities(subs, jsonFactory, outputStream);
+                    } finally {
+                        release.run();
+                    }
+                });
     }
 
     @PutMapping(value = "/users/identities/{sub}")
     @Operation(summary = "Store user identity from the oidc idtoken")
-    public UserIdentity save(@PathVariable("sub") String sub, @RequestBody String idtoken) {
-        return userIdentityService.save(sub, idtoken);
+    @ApiResponse(responseCode = "200", description = "The user identity is stored",
+            content = @Content(schema = @Schema(implementation = UserIdentity.class)))
+    @ApiResponse(responseCode = "202", description = "The user identity is buffered and will be stored shortly",
+            content = @Content(schema = @Schema(implementation = UserIdentity.class)))
+    @ApiResponse(responseCode = "429", description = "Too many concurrent saves, retry after the Retry-After seconds")
+    public ResponseEntity<Object> save(@PathVariable("sub") String sub, @RequestBody String idtoken, NativeWebRequest request)
+            throws HttpMediaTypeNotAcceptableException {
+        SavedUserIdentity savedUserIdentity = userIdentityBulkheads.write().call(() -> userIdentityService.save(sub, idtoken));
+        // refreshes the json of the sub for the next lookups
+        byte[] json = userIdentityJsons.put(savedUserIdentity.userIdentity(), savedUserIdentity.eTag());
+        return negotiated(ResponseEntity.status(savedUserIdentity.buffered() ? HttpStatus.ACCEPTED : HttpStatus.OK),
+            getBinaryMediaType(request), savedUserIdentity::userIdentity, () -> json);
+    }
+
+    // Same as the json idtoken, the claims are converted back to json for the idtoken storage
+    @PutMapping(value = "/users/identities/{sub}", consumes = {MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    @Operation(summary = "Store user identity from the oidc idtoken claims in cbor or smile")
+    public ResponseEntity<Object> saveBinary(@PathVariable("sub") String sub, @RequestBody JsonNode claims, NativeWebRequest request)
+            throws HttpMediaTypeNotAcceptableException, JsonProcessingException {
+        return save(sub, objectMapper.writeValueAsString(claims), request);
+    }
+
+    @PostMapping(value = "/users/identities/import", consumes = MediaType.APPLICATION_NDJSON_VALUE)
+    @Operation(summary = "Store user identities from newline delimited {\"sub\": ..., \"idtoken\": ...} json objects")
+    public UserIdentitiesImportResult importIdentities(InputStream ndjson) throws IOException {
+        return userIdentityBulkheads.write().call(() -> userIdentityImporter.importIdentities(ndjson));
+    }
+
+    // next to /users/identities/{sub} like the export
+    @GetMapping(value = "/users/identities-search")
+    @Operation(summary = "Search the user identities whose first or last names have words starting with each word of the query, "
+            + "ignoring case and accents")
+    @ApiResponse(responseCode = "404", description = "The search is disabled")
+    public ResponseEntity<List<UserIdentity>> search(
+            @RequestParam("q") String query,
+            @RequestParam(required = false, defaultValue = "20") int limit) {
+        return userIdentityBulkheads.read().call(() -> ResponseEntity.of(userIdentitySearch.search(query, limit)));
+    }
+
+    // next to /users/identities/{sub} like the export
+    @GetMapping(value = "/users/identities-changes")
+    @Operation(summary = "Get the user identities changed since a position of the change feed, in change order",
+            description = "The changes are returned once they are older than user-identity.changes.settle-window, "
+                    + "so that a change committed late is not skipped. Following the next values from 0 returns "
+                    + "every identity at least once, an identity changed again is returned again.")
+    public UserIdentityChanges getChanges(
+            @Parameter(description = "The next value of the previous call, 0 to get all the identities")
+            @RequestParam(required = false, defaultValue = "0") long since,
+            @RequestParam(required = false, defaultValue = "500") int limit) {
+        return userIdentityBulkheads.read().call(() -> userIdentityService.getChanges(since, limit));
+    }
+
+    // Not in the read bulkhead, a full export would hold its permit for minutes.
+    // Next to /users/identities/{sub} and not under it, which would hide the sub "export"
+    @GetMapping(value = "/users/identities-export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @Operation(summary = "Get all the user identities as newline delimited json, ordered by sub")
+    public ResponseEntity<StreamingResponseBody> exportIdentities(
+            @Parameter(description = "Resume the export after this sub, the sub of the last received identity")
+            @RequestParam(required = false, defaultValue = "") String after,
+            NativeWebRequest request) {
+        setStreamTimeout(request, exportTimeout);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(outputStream -> userIdentityExporter.exportIdentities(after, outputStream));
     }
 }
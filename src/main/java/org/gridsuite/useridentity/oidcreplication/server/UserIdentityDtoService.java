@@ -6,12 +6,37 @@
  */
 package org.gridsuite.useridentity.oidcreplication.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
 import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileConstants;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 
 /**
  * @author Jon Schuhmacher <jon.harper at rte-france.com>
@@ -19,81 +44,258 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 @Service
 public class UserIdentityDtoService {
 
+    // Version of the evaluation of the names rules, see UserIdentityNamesPipeline.
+    // Increment it when changing the evaluation. The names are stored with a fingerprint
+    // of this version and of the configured rules, see getNamesVersion
+    public static final int NAMES_VERSION = 1;
+
+    // How the idtokens are stored by deriveNames
+    public enum IdtokenStorage {
+        // the raw idtoken json
+        RAW,
+        // only the claims used to derive the names, see encodeClaims
+        CLAIMS,
+    }
+
     private ObjectMapper objectMapper;
+    private SmileFactory smileFactory = new SmileFactory();
+
+    private final IdtokenStorage idtokenStorage;
+    private final boolean compressClaims;
+    private final boolean keepRawIdtoken;
 
-    public UserIdentityDtoService(ObjectMapper objectMapper) {
+    private final UserIdentityNamesPipeline defaultNamesPipeline;
+    private final Map<String, UserIdentityNamesPipeline> namesPipelinesByIss = new HashMap<>();
+    private final int namesVersion;
+
+    private Timer parseTimer;
+    private DistributionSummary idtokenSizeSummary;
+    private DistributionSummary claimsSizeSummary;
+
+    public UserIdentityDtoService(ObjectMapper objectMapper, MeterRegistry meterRegistry,
+                                  UserIdentityNamesRules namesRules,
+                                  @Value("${user-identity.idtoken-storage.mode}") IdtokenStorage idtokenStorage,
+                                  @Value("${user-identity.idtoken-storage.compress}") boolean compressClaims,
+                                  @Value("${user-identity.idtoken-storage.keep-raw}") boolean keepRawIdtoken) {
         this.objectMapper = objectMapper;
+        this.idtokenStorage = idtokenStorage;
+        this.compressClaims = compressClaims;
+        this.keepRawIdtoken = keepRawIdtoken;
+        defaultNamesPipeline = UserIdentityNamesPipeline.compile("the default rules",
+                namesRules.defaults().firstName(), namesRules.defaults().lastName());
+        for (UserIdentityNamesRules.IssuerRules issuerRules : namesRules.issuers()) {
+            namesPipelinesByIss.put(issuerRules.iss(), UserIdentityNamesPipeline.compile(issuerRules.iss(),
+                    issuerRules.firstName(), issuerRules.lastName()));
+        }
+        namesVersion = namesVersion(namesRules);
+        parseTimer = Timer.builder("useridentity.idtoken.parse")
+                .description("Time to extract the claims of an idtoken or of its stored claims")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        idtokenSizeSummary = DistributionSummary.builder("useridentity.idtoken.size")
+                .description("Length of the saved idtokens")
+                .baseUnit("characters")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        claimsSizeSummary = DistributionSummary.builder("useridentity.claims.size")
+                .description("Size of the encoded claims stored instead of the idtokens")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    public IdtokenStorage getIdtokenStorage() {
+        return idtokenStorage;
+    }
+
+    public boolean isKeepRawIdtoken() {
+        return keepRawIdtoken;
+    }
+
+    // Fingerprint of NAMES_VERSION and of the rules, so that the stored names are derived
+    // again by UserIdentityNamesBackfill when the rules change
+    static int namesVersion(UserIdentityNamesRules namesRules) {
+        StringBuilder rules = new StringBuilder().append(NAMES_VERSION).append('\n')
+                .append(namesRules.defaults().firstName()).append(namesRules.defaults().lastName());
+        namesRules.issuers().stream()
+                .sorted(Comparator.comparing(UserIdentityNamesRules.IssuerRules::iss))
+                .forEach(issuerRules -> rules.append('\n').append(issuerRules.iss())
+                        .append(issuerRules.firstName()).append(issuerRules.lastName()));
+        byte[] digest = newSha256Digest().digest(rules.toString().getBytes(StandardCharsets.UTF_8));
+        return ByteBuffer.wrap(digest).getInt() & Integer.MAX_VALUE;
     }
 
-    private String computeFirstName(String sub, String name, String givenName, String nickname, String preferredUsername) {
-        // Try to do our best with heterogeneous data from differing identity providers
-        // Feel free to improve this upon discovering new data formats..
+    public int getNamesVersion() {
+        return namesVersion;
+    }
+
+    public Optional<UserIdentity> toDto(UserIdentityNames userIdentityNames) {
+        if (userIdentityNames.getNamesVersion() == null || userIdentityNames.getNamesVersion() != namesVersion) {
+            return Optional.empty();
+        }
+        return Optional.of(new UserIdentity(userIdentityNames.getSub(),
+                                            userIdentityNames.getFirstName(),
+                                            userIdentityNames.getLastName()));
+    }
 
-        // return given nam if exists
-        if (givenName != null) {
-            return givenName;
+    // like toDto, and also stores the derived names and the content hash in the entity,
+    // and with the CLAIMS storage replaces the raw idtoken by its encoded claims.
+    // Throws for the values too long for their columns, which would fail the writes later.
+    public UserIdentity deriveNames(UserIdentityEntity userIdentityEntity) {
+        IdTokenClaims claims;
+        if (userIdentityEntity.getClaims() != null) {
+            claims = decodeClaims(userIdentityEntity.getClaims());
+        } else {
+            idtokenSizeSummary.record(userIdentityEntity.getIdtoken().length());
+            claims = parseClaims(userIdentityEntity.getIdtoken());
         }
-        // or return first Name
-        if (name != null) {
-            String[] names = name.split(" ");
-            if (names.length >= 2) {
-                return names[0];
+        UserIdentity userIdentity = toDto(userIdentityEntity.getSub(), claims);
+        userIdentityEntity.setFirstName(userIdentity.getFirstName());
+        userIdentityEntity.setLastName(userIdentity.getLastName());
+        userIdentityEntity.setNamesVersion(namesVersion);
+        userIdentityEntity.setContentHash(contentHash(claims));
+        if (idtokenStorage == IdtokenStorage.CLAIMS) {
+            byte[] encodedClaims = encodeClaims(claims);
+            claimsSizeSummary.record(encodedClaims.length);
+            userIdentityEntity.setClaims(encodedClaims);
+            if (!keepRawIdtoken) {
+                userIdentityEntity.setIdtoken(null);
             }
         }
-        // or nickname
-        if (nickname != null) {
-            return nickname;
+        checkLength("sub", userIdentityEntity.getSub(), UserIdentityEntity.SUB_MAX_LENGTH);
+        checkLength("idtoken", userIdentityEntity.getIdtoken(), UserIdentityEntity.IDTOKEN_MAX_LENGTH);
+        checkLength("first name", userIdentity.getFirstName(), UserIdentityEntity.NAME_MAX_LENGTH);
+        checkLength("last name", userIdentity.getLastName(), UserIdentityEntity.NAME_MAX_LENGTH);
+        return userIdentity;
+    }
+
+    private static void checkLength(String name, String value, int maxLength) {
+        if (value != null && value.length() > maxLength) {
+            throw new UserIdentityException(UserIdentityException.VALUE_TOO_LONG, "Too long " + name + ": " + value.length() + " characters, at most " + maxLength);
+        }
+    }
+
+    static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // mandatory in all jvms
         }
-        // or preferred user name
-        if (preferredUsername != null) {
-            return preferredUsername;
+    }
+
+    // Hash of the claims used to derive the names, the other claims (iat, exp, nonce...)
+    // change on each login but are irrelevant for us
+    static String contentHash(IdTokenClaims claims) {
+        MessageDigest digest = newSha256Digest();
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        for (int i = 0; i < IdTokenClaims.COUNT; i++) {
+            String claim = claims.get(i);
+            byte[] bytes = claim != null ? claim.getBytes(StandardCharsets.UTF_8) : null;
+            digest.update(length.clear().putInt(bytes != null ? bytes.length : -1).array());
+            if (bytes != null) {
+                digest.update(bytes);
+            }
         }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Single pass over the top level fields of the idtoken, without building a tree:
+    // nested objects and arrays are skipped and the parsing stops as soon as all
+    // the claims are found.
+    IdTokenClaims parseClaims(String idtoken) {
+        return parseTimer.record(() -> doParseClaims(idtoken));
+    }
 
-        if (name != null && !name.equals(sub)) {
-            // a name without any whitespace almost last resort
-            // also not a copy of the sub because we use the sub in the lastname so avoid
-            // "sub sub" to look nicer
-            return name;
+    private IdTokenClaims doParseClaims(String idtoken) {
+        try (JsonParser parser = objectMapper.getFactory().createParser(idtoken)) {
+            return readClaims(parser);
+        } catch (IOException e) {
+            throw new UserIdentityException(e.getClass().getSimpleName() + ": Error parsing idtoken", e);
         }
-        // Last resort, just to display something not too terrible, not sure if
-        // it's a good idea. Looks like "S Sub".
-        return sub.substring(0, 1);
     }
 
-    private String computeLastName(String sub, String name, String familyName, String middleName) {
-        // Try to do our best with heterogeneous data from differing identity providers
-        // Feel free to improve this upon discovering new data formats..
+    // The stored claims are a smile object with the same fields as the idtoken, so they are read
+    // by the same parsing loop. The smile header is kept to tell them from the deflated ones.
+    IdTokenClaims decodeClaims(byte[] claims) {
+        return parseTimer.record(() -> doDecodeClaims(claims));
+    }
 
-        // return family name if exists
-        if (familyName != null) {
-            return familyName;
+    private IdTokenClaims doDecodeClaims(byte[] claims) {
+        try (JsonParser parser = claims.length > 0 && claims[0] == SmileConstants.HEADER_BYTE_1
+                ? smileFactory.createParser(claims)
+                : smileFactory.createParser(new InflaterInputStream(new ByteArrayInputStream(claims)))) {
+            return readClaims(parser);
+        } catch (IOException e) {
+            throw new UserIdentityException(e.getClass().getSimpleName() + ": Error decoding claims", e);
         }
-        // or return last Name
-        if (name != null) {
-            String[] names = name.split(" ");
-            if (names.length >= 2) {
-                return names[names.length - 1];
+    }
+
+    private static IdTokenClaims readClaims(JsonParser parser) throws IOException {
+        String[] claims = new String[IdTokenClaims.COUNT];
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_OBJECT) {
+            int found = 0;
+            while (found < IdTokenClaims.COUNT && parser.nextToken() == JsonToken.FIELD_NAME) {
+                int index = IdTokenClaims.index(parser.currentName());
+                if (parser.nextToken() != JsonToken.VALUE_STRING) {
+                    parser.skipChildren();
+                } else if (index >= 0 && claims[index] == null) {
+                    claims[index] = parser.getText();
+                    found++;
+                }
             }
+        } else if (token != null) {
+            // not an object, no claims, but still fail on invalid json
+            parser.skipChildren();
         }
-        // or middle name
-        if (middleName != null) {
-            return middleName;
-        }
-        // Last resort use the sub, just to display something
-        // not too terrible, not sure if it's a good idea we
-        // don't use the "name" field here more precisly
-        // because we will use it for the firstname as a last resort
-        // so avoid duplicating
-        return sub;
+        return new IdTokenClaims(claims[0], claims[1], claims[2], claims[3], claims[4], claims[5], claims[6], claims[7]);
     }
 
-    public UserIdentity toDto(UserIdentityEntity userIdentityEntity) {
-        JsonNode parsed;
+    // Only the present claims are written, typically about a tenth of the size of the
+    // idtoken. With compress, they are deflated when it makes them smaller, which
+    // happens only for long names as the smile encoding is already compact.
+    byte[] encodeClaims(IdTokenClaims claims) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        try (JsonGenerator generator = smileFactory.createGenerator(out)) {
+            generator.writeStartObject();
+            for (int i = 0; i < IdTokenClaims.COUNT; i++) {
+                String claim = claims.get(i);
+                if (claim != null) {
+                    generator.writeStringField(IdTokenClaims.NAMES[i], claim);
+                }
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in memory
+        }
+        byte[] smile = out.toByteArray();
+        if (!compressClaims) {
+            return smile;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
         try {
-            parsed = objectMapper.readTree(userIdentityEntity.getIdtoken());
-        } catch (JsonProcessingException e) {
-            throw new UserIdentityException(e.getClass().getSimpleName() + ": Error parsing idtoken", e);
+            deflater.setInput(smile);
+            deflater.finish();
+            byte[] deflated = new byte[smile.length];
+            int length = deflater.deflate(deflated);
+            return deflater.finished() && length < smile.length ? Arrays.copyOf(deflated, length) : smile;
+        } finally {
+            deflater.end();
         }
+    }
+
+    // the stored claims if any, or those of the raw idtoken
+    IdTokenClaims parseClaims(UserIdentityEntity userIdentityEntity) {
+        return userIdentityEntity.getClaims() != null
+                ? decodeClaims(userIdentityEntity.getClaims())
+                : parseClaims(userIdentityEntity.getIdtoken());
+    }
+
+    public UserIdentity toDto(UserIdentityEntity userIdentityEntity) {
+        return toDto(userIdentityEntity.getSub(), parseClaims(userIdentityEntity));
+    }
+
+    UserIdentity toDto(String entitySub, IdTokenClaims claims) {
 
         // Openid Connect idtoken spec:
         //  name | End-User's full name in displayable form including all name
@@ -123,20 +325,12 @@ public class UserIdentityDtoService {
         // as of 2024-09-06, azure returned for my user
         //  "name": "myfirstName mylastName",
         //  "preferred_username": "myemail",
-        String name = parsed.path("name").textValue();
-        String givenName = parsed.path("given_name").textValue();
-        String familyName = parsed.path("family_name").textValue();
-        String middleName = parsed.path("middle_name").textValue();
-        String nickname = parsed.path("nickname").textValue();
-        String preferredUsername = parsed.path("preferred_username").textValue();
-        String sub = parsed.path("sub").textValue();
+        String sub = claims.sub();
         if (sub == null) {
-            sub = userIdentityEntity.getSub();
+            sub = entitySub;
         }
 
-        return new UserIdentity(userIdentityEntity.getSub(),
-                                computeFirstName(sub, name, givenName, nickname, preferredUsername),
-                                computeLastName(sub, name, familyName, middleName)
-        );
+        UserIdentityNamesPipeline namesPipeline = namesPipelinesByIss.getOrDefault(claims.iss(), defaultNamesPipeline);
+        return new UserIdentity(entitySub, namesPipeline.firstName(claims, sub), namesPipeline.lastName(claims, sub));
     }
 }
@@ -6,6 +6,7 @@
  */
 package org.gridsuite.useridentity.oidcreplication.server;
 
+import java.time.Instant;
 import java.util.UUID;
 
 import jakarta.persistence.*;
@@ -22,8 +23,13 @@ import lombok.*;
 @Table(name = "user_identities", indexes = {@Index(name = "user_identities_sub_index", columnList = "sub")})
 public class UserIdentityEntity {
 
+    // The lengths of the columns, checked by UserIdentityDtoService.deriveNames before writing
+    static final int SUB_MAX_LENGTH = 255;
+    static final int IDTOKEN_MAX_LENGTH = 4096;
+    static final int NAME_MAX_LENGTH = 255;
+
     public UserIdentityEntity(String sub, String idtoken) {
-        this(null, sub, idtoken);
+        this(null, sub, idtoken, null, null, null, null, null, null, null);
     }
 
     @Id
@@ -31,10 +37,40 @@ public class UserIdentityEntity {
     @GeneratedValue(strategy = GenerationType.AUTO)
     private UUID id;
 
-    @Column(name = "sub", nullable = false, unique = true)
+    @Column(name = "sub", nullable = false, unique = true, length = SUB_MAX_LENGTH)
     private String sub;
 
-    @Column(name = "idtoken", length = 4096)
+    // The raw idtoken json, null when only the claims are stored, see UserIdentityDtoService.IdtokenStorage
+    @Column(name = "idtoken", length = IDTOKEN_MAX_LENGTH)
     private String idtoken;
 
+    // The names derived from the idtoken, to avoid parsing the idtoken on each read.
+    // They are valid only if namesVersion is UserIdentityDtoService.getNamesVersion
+    @Column(name = "first_name", length = NAME_MAX_LENGTH)
+    private String firstName;
+
+    @Column(name = "last_name", length = NAME_MAX_LENGTH)
+    private String lastName;
+
+    @Column(name = "names_version")
+    private Integer namesVersion;
+
+    // Hash of the idtoken claims used to derive the names, see UserIdentityDtoService.contentHash
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+
+    // Position in the change feed, taken from user_identities_change_seq by the database
+    // on each insert and update, see UserIdentityUpsertRepositoryImpl
+    @Column(name = "change_seq", insertable = false, updatable = false)
+    private Long changeSeq;
+
+    // When change_seq was taken, set by the database with it
+    @Column(name = "changed_at", insertable = false, updatable = false)
+    private Instant changedAt;
+
+    // The claims used to derive the names, smile encoded and possibly deflated,
+    // see UserIdentityDtoService.encodeClaims
+    @Column(name = "claims")
+    private byte[] claims;
+
 }
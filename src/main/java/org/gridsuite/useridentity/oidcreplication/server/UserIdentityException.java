@@ -7,16 +7,34 @@
  */
 package org.gridsuite.useridentity.oidcreplication.server;
 
+import java.util.Optional;
+
 /**
  * @author Bouzols sylvain <sylvain.bouzols_externe at rte-france.com>
  */
 class UserIdentityException extends RuntimeException {
 
+    static final String VALUE_TOO_LONG = "VALUE_TOO_LONG";
+
+    // reported per identity by the imports, the class of the cause by default
+    private final String errorCode;
+
     UserIdentityException(String msg) {
         super(msg);
+        this.errorCode = null;
     }
 
     UserIdentityException(String message, Throwable cause) {
         super(message, cause);
+        this.errorCode = cause.getClass().getSimpleName();
+    }
+
+    UserIdentityException(String errorCode, String message) {
+        super(message);
+        this.errorCode = errorCode;
+    }
+
+    Optional<String> getErrorCode() {
+        return Optional.ofNullable(errorCode);
     }
 }
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Exports all the identities as newline delimited json, ordered by sub.
+ * The table is walked by chunks in keyset order, each chunk in its own read-only
+ * transaction, so the memory usage and the transactions length don't depend on the
+ * size of the table. The sub of the last received identity is the cursor to resume
+ * an interrupted export.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+public class UserIdentityExporter {
+
+    static final int CHUNK_SIZE = 500;
+
+    private final UserIdentityRepository userIdentityRepository;
+    private final UserIdentityService userIdentityService;
+    // flushed once per chunk, not after each identity
+    private final ObjectWriter objectWriter;
+    private final TransactionTemplate readOnlyTransactionTemplate;
+
+    public UserIdentityExporter(UserIdentityRepository userIdentityRepository,
+                                UserIdentityService userIdentityService,
+                                ObjectMapper objectMapper,
+                                PlatformTransactionManager transactionManager) {
+        this.userIdentityRepository = userIdentityRepository;
+        this.userIdentityService = userIdentityService;
+        this.objectWriter = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate.setReadOnly(true);
+    }
+
+    public void exportIdentities(String afterSub, OutputStream outputStream) throws IOException {
+        try (JsonGenerator generator = objectWriter.createGenerator(outputStream)) {
+            // the servlet container closes the response stream
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            String cursor = afterSub;
+            while (cursor != null) {
+                Chunk chunk = readChunk(cursor);
+                for (UserIdentity userIdentity : chunk.userIdentities()) {
+                    objectWriter.writeValue(generator, userIdentity);
+                    generator.writeRaw('\n');
+                }
+                // let the client process the chunk while we read the next one
+                generator.flush();
+                cursor = chunk.nextCursor();
+            }
+        }
+    }
+
+    // nextCursor is null after the last chunk of the table
+    private record Chunk(List<UserIdentity> userIdentities, String nextCursor) {
+    }
+
+    private Chunk readChunk(String afterSub) {
+        return readOnlyTransactionTemplate.execute(status -> {
+            List<UserIdentityNames> chunk = userIdentityRepository.findNamesBySubGreaterThanOrderBySub(afterSub, Limit.of(CHUNK_SIZE));
+            // the rows with an invalid idtoken are not exported but still move the cursor
+            return new Chunk(userIdentityService.toDtos(chunk),
+                    chunk.size() < CHUNK_SIZE ? null : chunk.get(chunk.size() - 1).getSub());
+        });
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentitiesImportResult;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentityImportError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+/**
+ * Imports identities from newline delimited json, one {"sub": ..., "idtoken": ...}
+ * object per line, the idtoken being a json object or a string containing it.
+ * The lines are read and written in batches as they come so the memory usage
+ * doesn't depend on the size of the input. The lines are validated like the saves,
+ * and a batch rejected by the database is written again line by line so that only
+ * its invalid lines fail.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+public class UserIdentityImporter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserIdentityImporter.class);
+
+    static final int BATCH_SIZE = 500;
+    static final int MAX_REPORTED_ERRORS = 1000;
+
+    private record Line(long lineNumber, UserIdentityEntity userIdentityEntity) {
+    }
+
+    // the rows inserted or updated and the lines that failed, the others were unchanged
+    private record Saved(long written, long failed) {
+    }
+
+    private final UserIdentityService userIdentityService;
+    private final UserIdentityDtoService userIdentityDtoService;
+    private final ObjectMapper objectMapper;
+
+    public UserIdentityImporter(UserIdentityService userIdentityService,
+                                UserIdentityDtoService userIdentityDtoService,
+                                ObjectMapper objectMapper) {
+        this.userIdentityService = userIdentityService;
+        this.userIdentityDtoService = userIdentityDtoService;
+        this.objectMapper = objectMapper;
+    }
+
+    public UserIdentitiesImportResult importIdentities(InputStream ndjson) throws IOException {
+        long start = System.nanoTime();
+        long lineNumber = 0;
+        long imported = 0;
+        long unchanged = 0;
+        long duplicates = 0;
+        long failed = 0;
+        List<UserIdentityImportError> errors = new ArrayList<>();
+        // keyed by sub, the last line of a sub wins like successive saves
+        Map<String, Line> batch = new LinkedHashMap<>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(ndjson, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank()) {
+                continue;
+            }
+            JsonNode parsed;
+            try {
+                parsed = objectMapper.readTree(line);
+            } catch (JsonProcessingException e) {
+                parsed = MissingNode.getInstance();
+            }
+            String sub = parsed.path("sub").textValue();
+            JsonNode idtoken = parsed.path("idtoken");
+            if (sub == null || !(idtoken.isObject() || idtoken.isTextual())) {
+                failed++;
+                addError(errors, new UserIdentityImportError(lineNumber, sub, "INVALID_LINE"));
+                continue;
+            }
+            UserIdentityEntity userIdentityEntity = new UserIdentityEntity(sub,
+                    idtoken.isTextual() ? idtoken.textValue() : idtoken.toString());
+            try {
+                // validates the idtoken and the lengths like the single save
+                userIdentityDtoService.deriveNames(userIdentityEntity);
+            } catch (UserIdentityException e) {
+                failed++;
+                // the parsing errors, or a value too long for its column
+                addError(errors, new UserIdentityImportError(lineNumber, sub, e.getErrorCode().orElse("INVALID_LINE")));
+                continue;
+            }
+            if (batch.put(sub, new Line(lineNumber, userIdentityEntity)) != null) {
+                duplicates++;
+            }
+            if (batch.size() == BATCH_SIZE) {
+                Saved saved = saveAll(batch.values(), errors);
+                imported += saved.written();
+                unchanged += batch.size() - saved.written() - saved.failed();
+                failed += saved.failed();
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            Saved saved = saveAll(batch.values(), errors);
+            imported += saved.written();
+            unchanged += batch.size() - saved.written() - saved.failed();
+            failed += saved.failed();
+        }
+
+        long durationMillis = (System.nanoTime() - start) / 1_000_000;
+        // the lines processed, written or not
+        long identities = imported + unchanged;
+        return new UserIdentitiesImportResult(lineNumber, imported, unchanged, duplicates, failed, errors, durationMillis,
+                durationMillis > 0 ? identities * 1000.0 / durationMillis : identities);
+    }
+
+    private Saved saveAll(Collection<Line> lines, List<UserIdentityImportError> errors) {
+        try {
+            return new Saved(userIdentityService.saveAll(lines.stream().map(Line::userIdentityEntity).toList()), 0);
+        } catch (DataIntegrityViolationException e) {
+            // the other errors, like an unavailable database, abort the import
+            LOGGER.warn("Error importing {} user identities, importing them one by one", lines.size(), e);
+        }
+        long written = 0;
+        long failed = 0;
+        for (Line line : lines) {
+            try {
+                written += userIdentityService.saveAll(List.of(line.userIdentityEntity()));
+            } catch (DataIntegrityViolationException e) {
+                failed++;
+                addError(errors, new UserIdentityImportError(line.lineNumber(), line.userIdentityEntity().getSub(),
+                        e.getClass().getSimpleName()));
+            }
+        }
+        return new Saved(written, failed);
+    }
+
+    private static void addError(List<UserIdentityImportError> errors, UserIdentityImportError error) {
+        if (errors.size() < MAX_REPORTED_ERRORS) {
+            errors.add(error);
+        }
+    }
+}
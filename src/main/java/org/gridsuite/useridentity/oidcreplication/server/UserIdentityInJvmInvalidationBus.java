@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Delivers the messages synchronously to the other buses of the same jvm, each
+ * bus standing for a node. Enough for a single node, and for the tests which
+ * run several application contexts in the same jvm.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+@ConditionalOnProperty(name = "user-identity.invalidation-bus", havingValue = "in-jvm")
+public class UserIdentityInJvmInvalidationBus implements UserIdentityInvalidationBus {
+
+    private static final Set<UserIdentityInJvmInvalidationBus> BUSES = ConcurrentHashMap.newKeySet();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public UserIdentityInJvmInvalidationBus() {
+        BUSES.add(this);
+    }
+
+    @Override
+    public void publish(Collection<String> subs) {
+        List<String> message = List.copyOf(subs);
+        long publishedAtMillis = System.currentTimeMillis();
+        for (UserIdentityInJvmInvalidationBus bus : BUSES) {
+            if (bus != this) {
+                bus.listeners.forEach(listener -> listener.onInvalidation(message, publishedAtMillis));
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @PreDestroy
+    public void close() {
+        BUSES.remove(this);
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.util.Collection;
+
+/**
+ * Broadcasts the subs whose identity changed to the other nodes of the cluster
+ * so they can evict them from their caches (user-identity.invalidation-bus).
+ * A node doesn't receive its own messages.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+public interface UserIdentityInvalidationBus {
+
+    /**
+     * Called after the identities are written. In a transaction, the
+     * implementations may wait for the commit to deliver the message.
+     */
+    void publish(Collection<String> subs);
+
+    void subscribe(Listener listener);
+
+    interface Listener {
+
+        /**
+         * @param publishedAtMillis the publication time, on the clock of the publishing node
+         */
+        void onInvalidation(Collection<String> subs, long publishedAtMillis);
+
+        /**
+         * Messages may have been lost, for instance while reconnecting,
+         * all the cached identities must be considered stale.
+         */
+        void onMissedInvalidations();
+    }
+}
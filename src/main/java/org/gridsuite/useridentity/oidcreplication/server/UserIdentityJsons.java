@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentitiesResult;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentityError;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The json of the identities serialized once per sub and cached with the etag of the identity.
+ * The responses of the lookups whose etags match the cached ones are written from the cached
+ * bytes, without building the identities: the batch responses are assembled from the cached
+ * fragments, same json as a {@link UserIdentitiesResult} serialized by jackson with the data in
+ * the order of the subs, and only the other subs are looked up.
+ * <p>
+ * The saves refresh the entries of their subs, the invalidations evict them with the other
+ * caches: an identity read from a cache not evicted yet could be cached with the new etag.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+public class UserIdentityJsons {
+
+    // Bounded by size and ttl, see spring.cache.caffeine.spec
+    static final String USER_IDENTITY_JSONS_CACHE = "userIdentityJsons";
+
+    record Fragment(String eTag, byte[] json) {
+    }
+
+    private static final byte[] DATA_START = "{\"data\":{".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERRORS_START = "\"errors\":".getBytes(StandardCharsets.UTF_8);
+
+    private final Cache userIdentityJsonsCache;
+    private final UserIdentityService userIdentityService;
+    private final ObjectMapper objectMapper;
+
+    public UserIdentityJsons(CacheManager cacheManager, UserIdentityService userIdentityService, ObjectMapper objectMapper) {
+        this.userIdentityJsonsCache = cacheManager.getCache(USER_IDENTITY_JSONS_CACHE);
+        this.userIdentityService = userIdentityService;
+        this.objectMapper = objectMapper;
+    }
+
+    // The cached json of the identity of the sub, if it has this etag
+    public Optional<byte[]> getJson(String sub, String eTag) {
+        Fragment fragment = userIdentityJsonsCache.get(sub, Fragment.class);
+        return fragment != null && fragment.eTag().equals(eTag) ? Optional.of(fragment.json()) : Optional.empty();
+    }
+
+    /**
+     * Serializes the identity, cached for its etag.
+     * @param eTag the etag of the identity, not cached when null
+     */
+    public byte[] put(UserIdentity userIdentity, String eTag) {
+        byte[] json = serialize(userIdentity);
+        if (eTag != null) {
+            userIdentityJsonsCache.put(userIdentity.getSub(), new Fragment(eTag, json));
+        }
+        return json;
+    }
+
+    /**
+     * The json of the identities of the subs, with their errors.
+     * @param eTags the etags of the subs, see {@link UserIdentityService#getIdentityETags}
+     */
+    public byte[] toJson(Set<String> distinctSubs, Map<String, Optional<String>> eTags) {
+        // in the order of the subs, null until looked up
+        Map<String, byte[]> jsons = new LinkedHashMap<>();
+        Set<String> missingSubs = new LinkedHashSet<>();
+        for (String sub : distinctSubs) {
+            Optional<String> eTag = eTags.getOrDefault(sub, Optional.empty());
+            byte[] json = eTag.flatMap(tag -> getJson(sub, tag)).orElse(null);
+            jsons.put(sub, json);
+            if (json == null) {
+                missingSubs.add(sub);
+            }
+        }
+        UserIdentitiesResult missing = missingSubs.isEmpty() ? new UserIdentitiesResult()
+                : userIdentityService.lookupIdentities(missingSubs);
+        if (missing.getData() != null) {
+            for (UserIdentity userIdentity : missing.getData().values()) {
+                jsons.put(userIdentity.getSub(), put(userIdentity, eTags.getOrDefault(userIdentity.getSub(), Optional.empty()).orElse(null)));
+            }
+        }
+        jsons.values().removeIf(json -> json == null);
+        userIdentityService.recordBatch(distinctSubs.size(), jsons.size(), missing.getErrors());
+        return toJson(jsons, missing.getErrors());
+    }
+
+    // The data in the order of the map
+    byte[] toJson(Map<String, byte[]> jsons, Map<String, UserIdentityError> errors) {
+        if (jsons.isEmpty()) {
+            return serialize(new UserIdentitiesResult(null, errors));
+        }
+        // about the size of the fragments
+        ByteArrayOutputStream json = new ByteArrayOutputStream(64 + jsons.size() * 96);
+        json.writeBytes(DATA_START);
+        boolean first = true;
+        for (Map.Entry<String, byte[]> entry : jsons.entrySet()) {
+            if (!first) {
+                json.write(',');
+            }
+            first = false;
+            json.write('"');
+            json.writeBytes(JsonStringEncoder.getInstance().quoteAsUTF8(entry.getKey()));
+            json.write('"');
+            json.write(':');
+            json.writeBytes(entry.getValue());
+        }
+        json.write('}');
+        if (errors != null) {
+            json.write(',');
+            json.writeBytes(ERRORS_START);
+            json.writeBytes(serialize(errors));
+        }
+        json.write('}');
+        return json.toByteArray();
+    }
+
+    private byte[] serialize(Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            // not for these dtos
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Bloom filter of the stored subs (user-identity.known-subs), to answer the subs that never
+ * logged in without querying the database. It is built in the background after the startup,
+ * then rebuilt every rebuild-interval; the saved subs, here or on the other nodes, are added
+ * as they come. Until the first build, all the subs are considered possibly known.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+public class UserIdentityKnownSubs {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserIdentityKnownSubs.class);
+
+    static final int BATCH_SIZE = 10000;
+
+    private final boolean enabled;
+    private final long expectedSubs;
+    private final double falsePositiveRate;
+    private final Duration rebuildInterval;
+    private final UserIdentityRepository userIdentityRepository;
+    private final TransactionTemplate readOnlyTransactionTemplate;
+
+    private volatile UserIdentityBloomFilter filter;
+    // filter being built, also receives the subs saved during the build
+    private volatile UserIdentityBloomFilter building;
+    private volatile long knownSubsCount;
+    private final ScheduledExecutorService executor;
+
+    private final Counter negativeCounter;
+
+    public UserIdentityKnownSubs(
+        @Value("${user-identity.known-subs.enabled}") boolean enabled,
+        @Value("${user-identity.known-subs.expected-subs}") long expectedSubs,
+        @Value("${user-identity.known-subs.false-positive-rate}") double falsePositiveRate,
+        @Value("${user-identity.known-subs.rebuild-interval}") Duration rebuildInterval,
+        UserIdentityRepository userIdentityRepository,
+        PlatformTransactionManager transactionManager,
+        MeterRegistry meterRegistry
+    ) {
+        this.enabled = enabled;
+        this.expectedSubs = expectedSubs;
+        this.falsePositiveRate = falsePositiveRate;
+        this.rebuildInterval = rebuildInterval;
+        this.userIdentityRepository = userIdentityRepository;
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate.setReadOnly(true);
+
+        negativeCounter = Counter.builder("useridentity.knownsubs.negative")
+                .description("Number of lookups of unknown subs answered without querying the database")
+                .register(meterRegistry);
+        Gauge.builder("useridentity.knownsubs.size", this, knownSubs -> knownSubs.filter != null ? knownSubs.filter.bitSize() / 8 : 0)
+                .description("Memory used by the filter")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("useridentity.knownsubs.count", this, knownSubs -> knownSubs.knownSubsCount)
+                .description("Number of subs in the filter at its last build")
+                .register(meterRegistry);
+        Gauge.builder("useridentity.knownsubs.false.positive.rate", this,
+                knownSubs -> knownSubs.filter != null ? knownSubs.filter.expectedFalsePositiveRate() : 1)
+                .description("Expected rate of unknown subs still queried in the database")
+                .register(meterRegistry);
+
+        executor = enabled ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-identity-known-subs");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void scheduleRebuilds() {
+        if (enabled) {
+            executor.scheduleWithFixedDelay(this::rebuildSafely, 0, rebuildInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // for the missed invalidations, we don't know which subs were added
+    public void requestRebuild() {
+        if (enabled && !executor.isShutdown()) {
+            executor.execute(this::rebuildSafely);
+        }
+    }
+
+    private void rebuildSafely() {
+        try {
+            rebuild();
+        } catch (RuntimeException e) {
+            // keep the previous filter, retried on the next rebuild
+            building = null;
+            LOGGER.error("Error building the known subs filter", e);
+        }
+    }
+
+    synchronized void rebuild() {
+        long start = System.nanoTime();
+        UserIdentityBloomFilter newFilter = UserIdentityBloomFilter.create(Math.max(expectedSubs, knownSubsCount), falsePositiveRate);
+        building = newFilter;
+        long count = 0;
+        // keyset pagination on the sub
+        String afterSub = "";
+        while (afterSub != null) {
+            String batchAfterSub = afterSub;
+            List<String> batch = readOnlyTransactionTemplate.execute(status ->
+                    userIdentityRepository.findSubs(batchAfterSub, Limit.of(BATCH_SIZE)));
+            batch.forEach(newFilter::add);
+            count += batch.size();
+            afterSub = batch.size() < BATCH_SIZE ? null : batch.get(batch.size() - 1);
+        }
+        filter = newFilter;
+        building = null;
+        knownSubsCount = count;
+        if (count > expectedSubs) {
+            LOGGER.warn("{} known subs, more than user-identity.known-subs.expected-subs {}", count, expectedSubs);
+        }
+        LOGGER.info("Built the known subs filter of {} subs in {} ms, {} bytes", count,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), newFilter.bitSize() / 8);
+    }
+
+    public void add(String sub) {
+        // building first: the filter is replaced by building at the end of a build
+        UserIdentityBloomFilter currentBuilding = building;
+        if (currentBuilding != null) {
+            currentBuilding.add(sub);
+        }
+        UserIdentityBloomFilter currentFilter = filter;
+        if (currentFilter != null) {
+            currentFilter.add(sub);
+        }
+    }
+
+    /**
+     * @return false only if the sub is not stored
+     */
+    public boolean mightBeKnown(String sub) {
+        UserIdentityBloomFilter currentFilter = filter;
+        if (currentFilter == null || currentFilter.mightContain(sub)) {
+            return true;
+        }
+        negativeCounter.increment();
+        return false;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Coalescing of the concurrent lookups of the same subs missing from the caches: the first
+ * lookup of a sub loads it from the database while the concurrent lookups of this sub, single
+ * or in batches, wait for its result instead of querying it again. The results are only shared
+ * while loading, the caches keep them afterwards.
+ * <p>
+ * The batches claim the subs nobody is loading, load them, then wait for the others. They never
+ * wait while holding claims, so two batches loading each other's subs can't deadlock.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+public class UserIdentityLookupCoalescer {
+
+    // empty for the unknown subs, exceptional for the invalid idtokens
+    private final ConcurrentHashMap<String, CompletableFuture<Optional<UserIdentity>>> inFlight = new ConcurrentHashMap<>();
+
+    private final Counter singleCoalescedCounter;
+    private final Counter batchCoalescedCounter;
+
+    public UserIdentityLookupCoalescer(MeterRegistry meterRegistry) {
+        singleCoalescedCounter = coalescedCounter("single", meterRegistry);
+        batchCoalescedCounter = coalescedCounter("batch", meterRegistry);
+        Gauge.builder("useridentity.lookup.inflight", inFlight, Map::size)
+                .description("Number of subs being loaded from the database")
+                .register(meterRegistry);
+    }
+
+    private static Counter coalescedCounter(String lookup, MeterRegistry meterRegistry) {
+        return Counter.builder("useridentity.lookup.coalesced")
+                .description("Number of subs loaded by a concurrent lookup instead of querying the database")
+                .tag("lookup", lookup)
+                .register(meterRegistry);
+    }
+
+    /**
+     * The identity of the sub from the loader, or from the concurrent lookup loading it.
+     */
+    public Optional<UserIdentity> load(String sub, Supplier<Optional<UserIdentity>> loader) {
+        CompletableFuture<Optional<UserIdentity>> future = new CompletableFuture<>();
+        CompletableFuture<Optional<UserIdentity>> loading = inFlight.putIfAbsent(sub, future);
+        if (loading != null) {
+            singleCoalescedCounter.increment();
+            return join(loading);
+        }
+        try {
+            Optional<UserIdentity> userIdentity = loader.get();
+            future.complete(userIdentity);
+            return userIdentity;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(sub, future);
+        }
+    }
+
+    /**
+     * Claims the subs nobody is loading, to load them with {@link Claim#complete} and
+     * {@link Claim#fail} before waiting for the others with {@link Claim#join}.
+     */
+    public Claim claim(Collection<String> subs) {
+        Map<String, CompletableFuture<Optional<UserIdentity>>> claimed = new LinkedHashMap<>();
+        Map<String, CompletableFuture<Optional<UserIdentity>>> loading = new LinkedHashMap<>();
+        for (String sub : subs) {
+            CompletableFuture<Optional<UserIdentity>> future = new CompletableFuture<>();
+            CompletableFuture<Optional<UserIdentity>> previous = inFlight.putIfAbsent(sub, future);
+            if (previous == null) {
+                claimed.put(sub, future);
+            } else {
+                loading.put(sub, previous);
+            }
+        }
+        batchCoalescedCounter.increment(loading.size());
+        return new Claim(claimed, loading);
+    }
+
+    // the lookups started after a save must not get the identity loaded before it
+    public void forget(Collection<String> subs) {
+        subs.forEach(inFlight::remove);
+    }
+
+    public void forgetAll() {
+        inFlight.clear();
+    }
+
+    private static Optional<UserIdentity> join(CompletableFuture<Optional<UserIdentity>> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            // the exception of the loading lookup, rethrown as is for the error handling
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The subs claimed by a batch lookup and the subs loaded by concurrent lookups,
+     * must be closed to release the claims.
+     */
+    public final class Claim implements AutoCloseable {
+
+        private final Map<String, CompletableFuture<Optional<UserIdentity>>> claimed;
+        private final Map<String, CompletableFuture<Optional<UserIdentity>>> loading;
+
+        private Claim(Map<String, CompletableFuture<Optional<UserIdentity>>> claimed,
+                      Map<String, CompletableFuture<Optional<UserIdentity>>> loading) {
+            this.claimed = claimed;
+            this.loading = loading;
+        }
+
+        public Collection<String> getClaimedSubs() {
+            return claimed.keySet();
+        }
+
+        public Collection<String> getLoadingSubs() {
+            return loading.keySet();
+        }
+
+        public void complete(String sub, Optional<UserIdentity> userIdentity) {
+            claimed.get(sub).complete(userIdentity);
+        }
+
+        public void fail(String sub, RuntimeException e) {
+            claimed.get(sub).completeExceptionally(e);
+        }
+
+        /**
+         * The identity of a sub loaded by a concurrent lookup, empty for the unknown subs.
+         * @throws UserIdentityException when its idtoken is invalid
+         */
+        public Optional<UserIdentity> join(String sub) {
+            return UserIdentityLookupCoalescer.join(loading.get(sub));
+        }
+
+        // the claimed subs not loaded because of an error fail the lookups waiting for them
+        @Override
+        public void close() {
+            claimed.forEach((sub, future) -> {
+                future.completeExceptionally(new CancellationException("Lookup of " + sub + " aborted"));
+                inFlight.remove(sub, future);
+            });
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+
+/**
+ * Prefix index of the words of the first and last names, accent folded and lower cased.
+ * The words are the keys of a sorted map, so the words starting with a prefix are a range
+ * of it, and each word maps to the identities having it. The identities are indexed with
+ * their words, sharing the strings of the keys, to check the other words of the queries.
+ * The searches don't lock, the updates are serialized.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+final class UserIdentityNameIndex {
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern WORD_SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    // rough sizes of the objects on a 64 bits jvm with compressed oops, for the memory estimate
+    private static final int SKIP_LIST_ENTRY_BYTES = 48;
+    private static final int HASH_MAP_ENTRY_BYTES = 48;
+    private static final int OBJECT_BYTES = 16;
+    private static final int STRING_BYTES = 40;
+    private static final int REFERENCE_BYTES = 4;
+
+    private record Indexed(UserIdentity userIdentity, String[] words) {
+    }
+
+    private final ConcurrentSkipListMap<String, Indexed[]> identitiesByWord = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, Indexed> identitiesBySub = new ConcurrentHashMap<>();
+
+    private long wordsCount;
+    private long wordsChars;
+    private long wordReferencesCount;
+    private long identitiesChars;
+
+    static List<String> words(String text) {
+        if (text == null) {
+            return List.of();
+        }
+        String folded = COMBINING_MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        List<String> words = new ArrayList<>(2);
+        for (String word : WORD_SEPARATORS.split(folded)) {
+            if (!word.isEmpty() && !words.contains(word)) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    // the words of the first and last names, with the strings of the keys of the already indexed words
+    private String[] words(UserIdentity userIdentity) {
+        List<String> words = new ArrayList<>(words(userIdentity.getFirstName()));
+        for (String word : words(userIdentity.getLastName())) {
+            if (!words.contains(word)) {
+                words.add(word);
+            }
+        }
+        String[] indexedWords = new String[words.size()];
+        for (int i = 0; i < indexedWords.length; i++) {
+            String key = identitiesByWord.ceilingKey(words.get(i));
+            indexedWords[i] = words.get(i).equals(key) ? key : words.get(i);
+        }
+        return indexedWords;
+    }
+
+    /**
+     * Adds the identity, replacing the previous identity of its sub.
+     * @param replace false to keep the identity already indexed for the sub if any
+     */
+    synchronized void put(UserIdentity userIdentity, boolean replace) {
+        Indexed previous = identitiesBySub.get(userIdentity.getSub());
+        if (previous != null && (!replace || Objects.equals(previous.userIdentity().getFirstName(), userIdentity.getFirstName())
+                && Objects.equals(previous.userIdentity().getLastName(), userIdentity.getLastName()))) {
+            return;
+        }
+        if (previous != null) {
+            for (String word : previous.words()) {
+                identitiesByWord.computeIfPresent(word, (key, identities) -> remove(key, identities, previous));
+            }
+            identitiesChars -= chars(previous.userIdentity());
+        }
+        Indexed indexed = new Indexed(userIdentity, words(userIdentity));
+        identitiesBySub.put(userIdentity.getSub(), indexed);
+        identitiesChars += chars(userIdentity);
+        for (String word : indexed.words()) {
+            identitiesByWord.compute(word, (key, identities) -> add(key, identities, indexed));
+        }
+    }
+
+    private Indexed[] add(String word, Indexed[] identities, Indexed indexed) {
+        wordReferencesCount++;
+        if (identities == null) {
+            wordsCount++;
+            wordsChars += word.length();
+            return new Indexed[] {indexed};
+        }
+        Indexed[] added = Arrays.copyOf(identities, identities.length + 1);
+        added[identities.length] = indexed;
+        return added;
+    }
+
+    private Indexed[] remove(String word, Indexed[] identities, Indexed indexed) {
+        for (int i = 0; i < identities.length; i++) {
+            if (identities[i] == indexed) {
+                wordReferencesCount--;
+                if (identities.length == 1) {
+                    wordsCount--;
+                    wordsChars -= word.length();
+                    return null; // removes the word
+                }
+                Indexed[] removed = Arrays.copyOf(identities, identities.length - 1);
+                System.arraycopy(identities, i + 1, removed, i, identities.length - i - 1);
+                return removed;
+            }
+        }
+        return identities;
+    }
+
+    private static int chars(UserIdentity userIdentity) {
+        return userIdentity.getSub().length() + length(userIdentity.getFirstName()) + length(userIdentity.getLastName());
+    }
+
+    private static int length(String text) {
+        return text != null ? text.length() : 0;
+    }
+
+    /**
+     * The identities having, for each word of the query, a word starting with it. The words
+     * are looked up from the longest word of the query, in the order of the matching words.
+     */
+    List<UserIdentity> search(String query, int limit) {
+        List<String> queryWords = words(query);
+        if (queryWords.isEmpty()) {
+            return List.of();
+        }
+        String longestWord = queryWords.get(0);
+        for (String queryWord : queryWords) {
+            if (queryWord.length() > longestWord.length()) {
+                longestWord = queryWord;
+            }
+        }
+        Map<String, UserIdentity> found = new LinkedHashMap<>();
+        for (Indexed[] identities : identitiesByWord.subMap(longestWord, longestWord + Character.MAX_VALUE).values()) {
+            for (Indexed indexed : identities) {
+                UserIdentity userIdentity = indexed.userIdentity();
+                if (!found.containsKey(userIdentity.getSub())
+                        && (queryWords.size() == 1 || matchesAll(indexed.words(), queryWords))) {
+                    found.put(userIdentity.getSub(), userIdentity);
+                    if (found.size() == limit) {
+                        return new ArrayList<>(found.values());
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(found.values());
+    }
+
+    private static boolean matchesAll(String[] words, List<String> queryWords) {
+        for (String queryWord : queryWords) {
+            if (!startsWithAny(words, queryWord)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWithAny(String[] words, String prefix) {
+        for (String word : words) {
+            if (word.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    long size() {
+        return identitiesBySub.size();
+    }
+
+    // Latin-1 strings being stored with a byte per char
+    synchronized long estimatedBytes() {
+        return wordsCount * (SKIP_LIST_ENTRY_BYTES + STRING_BYTES + OBJECT_BYTES) + wordsChars
+                + wordReferencesCount * 2 * REFERENCE_BYTES
+                + identitiesBySub.size() * (HASH_MAP_ENTRY_BYTES + 3L * OBJECT_BYTES + 3L * STRING_BYTES) + identitiesChars;
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.time.Instant;
+
+/**
+ * Projection of the derived names and content hash of a {@link UserIdentityEntity}, without the idtoken.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+public interface UserIdentityNames {
+    String getSub();
+
+    String getFirstName();
+
+    String getLastName();
+
+    Integer getNamesVersion();
+
+    String getContentHash();
+
+    Long getChangeSeq();
+
+    Instant getChangedAt();
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Stores the derived names and content hash of the rows saved before they were persisted
+ * or with outdated rules (see {@link UserIdentityDtoService#getNamesVersion}), and converts
+ * the rows to the configured {@link UserIdentityDtoService.IdtokenStorage}.
+ * Reads still work for the rows not migrated yet, they just parse the idtoken.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+public class UserIdentityNamesBackfill {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserIdentityNamesBackfill.class);
+
+    static final int BATCH_SIZE = 500;
+
+    private final UserIdentityRepository userIdentityRepository;
+    private final UserIdentityDtoService userIdentityDtoService;
+    private final TransactionTemplate transactionTemplate;
+    private final UserIdentitySearch userIdentitySearch;
+    private final UserIdentityReplica userIdentityReplica;
+
+    public UserIdentityNamesBackfill(UserIdentityRepository userIdentityRepository,
+                                     UserIdentityDtoService userIdentityDtoService,
+                                     TransactionTemplate transactionTemplate,
+                                     UserIdentitySearch userIdentitySearch,
+                                     UserIdentityReplica userIdentityReplica) {
+        this.userIdentityRepository = userIdentityRepository;
+        this.userIdentityDtoService = userIdentityDtoService;
+        this.transactionTemplate = transactionTemplate;
+        this.userIdentitySearch = userIdentitySearch;
+        this.userIdentityReplica = userIdentityReplica;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfill() {
+        // keyset pagination on the id, the rows with an invalid idtoken are
+        // skipped and stay outdated, they are retried on the next startup
+        UUID afterId = new UUID(0, 0);
+        int updated = 0;
+        int failed = 0;
+        while (afterId != null) {
+            int[] counts = new int[2];
+            List<UserIdentityReplicaTable.Entry> changed = new ArrayList<>();
+            UUID batchAfterId = afterId;
+            afterId = transactionTemplate.execute(status -> {
+                List<UserIdentityEntity> batch = userIdentityRepository.findOutdated(userIdentityDtoService.getNamesVersion(),
+                        userIdentityDtoService.getIdtokenStorage() == UserIdentityDtoService.IdtokenStorage.CLAIMS,
+                        userIdentityDtoService.isKeepRawIdtoken(), batchAfterId, Limit.of(BATCH_SIZE));
+                List<UUID> changedIds = new ArrayList<>(batch.size());
+                for (UserIdentityEntity userIdentityEntity : batch) {
+                    try {
+                        String firstName = userIdentityEntity.getFirstName();
+                        String lastName = userIdentityEntity.getLastName();
+                        UserIdentity userIdentity = userIdentityDtoService.deriveNames(userIdentityEntity); // flushed on commit
+                        if (!Objects.equals(firstName, userIdentityEntity.getFirstName())
+                                || !Objects.equals(lastName, userIdentityEntity.getLastName())) {
+                            changedIds.add(userIdentityEntity.getId());
+                            changed.add(new UserIdentityReplicaTable.Entry(userIdentity, userIdentityEntity.getContentHash()));
+                        }
+                        counts[0]++;
+                    } catch (UserIdentityException e) {
+                        LOGGER.warn("Can't derive the names of {}: {}", userIdentityEntity.getSub(), e.getMessage());
+                        counts[1]++;
+                    }
+                }
+                // the names may have changed with the rules, publish them in the change feed,
+                // but not the rows whose storage was just converted
+                userIdentityRepository.bumpChangeSeq(changedIds);
+                return batch.size() < BATCH_SIZE ? null : batch.get(batch.size() - 1).getId();
+            });
+            // the index and the replica may have been built from the outdated names
+            changed.forEach(entry -> userIdentitySearch.put(entry.userIdentity()));
+            changed.forEach(entry -> userIdentityReplica.put(entry.userIdentity(), entry.contentHash()));
+            updated += counts[0];
+            failed += counts[1];
+        }
+        if (updated > 0 || failed > 0) {
+            LOGGER.info("Derived names or converted storage of {} user identities, {} failed", updated, failed);
+        }
+    }
+}
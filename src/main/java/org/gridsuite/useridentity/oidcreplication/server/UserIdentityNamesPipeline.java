@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.util.List;
+
+/**
+ * The names rules of an issuer, compiled at startup so that the evaluation doesn't
+ * look up claims by name or allocate anything but the returned names.
+ * A rule is a claim name of {@link IdTokenClaims#NAMES}, the sub being the one of
+ * the entity when the idtoken has none, optionally followed by a step:
+ * <ul>
+ * <li>{@code name} the claim when present</li>
+ * <li>{@code name:first-word} the first word of the claim when it has several words</li>
+ * <li>{@code name:last-word} the last word of the claim when it has several words</li>
+ * <li>{@code name:not-sub} the claim when it is not a copy of the sub</li>
+ * <li>{@code sub:initial} the first character of the claim</li>
+ * </ul>
+ * The sub is used when no rule gives a value.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+final class UserIdentityNamesPipeline {
+
+    private enum Step {
+        CLAIM,
+        FIRST_WORD,
+        LAST_WORD,
+        NOT_SUB,
+        INITIAL,
+    }
+
+    private record Rule(int claim, Step step) {
+    }
+
+    private final Rule[] firstNameRules;
+    private final Rule[] lastNameRules;
+
+    private UserIdentityNamesPipeline(Rule[] firstNameRules, Rule[] lastNameRules) {
+        this.firstNameRules = firstNameRules;
+        this.lastNameRules = lastNameRules;
+    }
+
+    static UserIdentityNamesPipeline compile(String owner, List<String> firstNameRules, List<String> lastNameRules) {
+        return new UserIdentityNamesPipeline(compile(owner, firstNameRules), compile(owner, lastNameRules));
+    }
+
+    private static Rule[] compile(String owner, List<String> rules) {
+        if (rules == null || rules.isEmpty()) {
+            throw new IllegalArgumentException("No names rules for " + owner);
+        }
+        return rules.stream().map(rule -> compile(owner, rule)).toArray(Rule[]::new);
+    }
+
+    private static Rule compile(String owner, String rule) {
+        int colon = rule.indexOf(':');
+        String claimName = colon >= 0 ? rule.substring(0, colon) : rule;
+        int claim = IdTokenClaims.index(claimName);
+        if (claim < 0) {
+            throw new IllegalArgumentException("Unknown claim in names rule '" + rule + "' for " + owner
+                    + ", expected one of " + List.of(IdTokenClaims.NAMES));
+        }
+        Step step = colon < 0 ? Step.CLAIM : switch (rule.substring(colon + 1)) {
+            case "first-word" -> Step.FIRST_WORD;
+            case "last-word" -> Step.LAST_WORD;
+            case "not-sub" -> Step.NOT_SUB;
+            case "initial" -> Step.INITIAL;
+            default -> throw new IllegalArgumentException("Unknown step in names rule '" + rule + "' for " + owner
+                    + ", expected one of first-word, last-word, not-sub, initial");
+        };
+        return new Rule(claim, step);
+    }
+
+    String firstName(IdTokenClaims claims, String sub) {
+        return evaluate(firstNameRules, claims, sub);
+    }
+
+    String lastName(IdTokenClaims claims, String sub) {
+        return evaluate(lastNameRules, claims, sub);
+    }
+
+    private static String evaluate(Rule[] rules, IdTokenClaims claims, String sub) {
+        for (Rule rule : rules) {
+            String value = rule.claim() == IdTokenClaims.SUB ? sub : claims.get(rule.claim());
+            if (value != null) {
+                String result = apply(rule.step(), value, sub);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        return sub;
+    }
+
+    private static String apply(Step step, String value, String sub) {
+        return switch (step) {
+            case CLAIM -> value;
+            case FIRST_WORD -> {
+                int firstSpace = value.indexOf(' ');
+                yield firstSpace >= 0 && firstSpace < endIgnoringTrailingSpaces(value) ? value.substring(0, firstSpace) : null;
+            }
+            case LAST_WORD -> {
+                int end = endIgnoringTrailingSpaces(value);
+                int lastSpace = value.lastIndexOf(' ', end - 1);
+                yield lastSpace >= 0 ? value.substring(lastSpace + 1, end) : null;
+            }
+            case NOT_SUB -> value.equals(sub) ? null : value;
+            case INITIAL -> value.isEmpty() ? null : value.substring(0, 1);
+        };
+    }
+
+    // The words are split like value.split(" ") without the regex machinery:
+    // on each single space, ignoring the trailing spaces
+    private static int endIgnoringTrailingSpaces(String value) {
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return end;
+    }
+}
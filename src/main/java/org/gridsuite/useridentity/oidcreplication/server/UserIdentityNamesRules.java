@@ -0,0 +1,34 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * The rules deriving the names from the idtoken claims, the first rule giving a value wins.
+ * Each rule is a claim, optionally followed by a step, see {@link UserIdentityNamesPipeline}.
+ *
+ * @param defaults the rules of the idtokens of the issuers without specific rules
+ * @param issuers the specific rules, selected by the iss claim of the idtoken
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@ConfigurationProperties("user-identity.names-rules")
+public record UserIdentityNamesRules(Rules defaults, List<IssuerRules> issuers) {
+
+    public UserIdentityNamesRules {
+        issuers = issuers != null ? issuers : List.of();
+    }
+
+    public record Rules(List<String> firstName, List<String> lastName) {
+    }
+
+    public record IssuerRules(String iss, List<String> firstName, List<String> lastName) {
+    }
+}
@@ -8,12 +8,16 @@ package org.gridsuite.useridentity.oidcreplication.server;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.cache.annotation.EnableCaching;
 
 /**
  * @author Jon Schuhmacher <jon.harper at rte-france.com>
  */
 @SuppressWarnings("checkstyle:HideUtilityClassConstructor")
 @SpringBootApplication
+@EnableCaching
+@EnableConfigurationProperties(UserIdentityNamesRules.class)
 public class UserIdentityOidcReplicationApplication {
 
     public static void main(String[] args) {
@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Broadcasts the invalidations with postgres NOTIFY on the database we already use.
+ * A dedicated connection, opened outside of the pool so that it doesn't take a pooled
+ * connection forever nor leave a LISTEN on it, listens to the primary database
+ * (a hot standby can't LISTEN). The notifications sent while it is
+ * disconnected are lost, so after a reconnection the listeners are told to drop
+ * everything (see {@link Listener#onMissedInvalidations()}).
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+@ConditionalOnProperty(name = "user-identity.invalidation-bus", havingValue = "postgres")
+public class UserIdentityPostgresInvalidationBus implements UserIdentityInvalidationBus {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserIdentityPostgresInvalidationBus.class);
+
+    static final String CHANNEL = "user_identity_invalidations";
+
+    // postgres rejects payloads of 8000 bytes or more
+    static final int MAX_PAYLOAD_BYTES = 7000;
+
+    private static final int POLL_TIMEOUT_MILLIS = 1000;
+    private static final long RECONNECT_DELAY_MILLIS = 5000;
+
+    record Message(String node, long publishedAt, List<String> subs) {
+    }
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final DataSourceProperties dataSourceProperties;
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Thread listenerThread;
+    private volatile boolean running = true;
+
+    public UserIdentityPostgresInvalidationBus(DataSource dataSource, DataSourceProperties dataSourceProperties,
+                                              ObjectMapper objectMapper) {
+        this.dataSourceProperties = dataSourceProperties;
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.objectMapper = objectMapper;
+        listenerThread = new Thread(this::listen, "user-identity-invalidation-listener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    @Override
+    public void publish(Collection<String> subs) {
+        for (String payload : payloads(nodeId, System.currentTimeMillis(), subs, objectMapper)) {
+            // in the caller transaction if any, delivered on commit
+            jdbcTemplate.queryForObject("SELECT pg_notify(?, ?)", Object.class, CHANNEL, payload);
+        }
+    }
+
+    // as few messages as possible, each one under the size limit
+    static List<String> payloads(String nodeId, long publishedAt, Collection<String> subs, ObjectMapper objectMapper) {
+        List<String> payloads = new ArrayList<>();
+        List<String> chunk = new ArrayList<>();
+        int chunkBytes = 0;
+        for (String sub : subs) {
+            // quotes and comma, a bit more if the sub needs escaping but we have a margin
+            int subBytes = sub.getBytes(StandardCharsets.UTF_8).length + 3;
+            if (!chunk.isEmpty() && chunkBytes + subBytes > MAX_PAYLOAD_BYTES) {
+                payloads.add(toJson(new Message(nodeId, publishedAt, chunk), objectMapper));
+                chunk = new ArrayList<>();
+                chunkBytes = 0;
+            }
+            chunk.add(sub);
+            chunkBytes += subBytes;
+        }
+        if (!chunk.isEmpty()) {
+            payloads.add(toJson(new Message(nodeId, publishedAt, chunk), objectMapper));
+        }
+        return payloads;
+    }
+
+    private static String toJson(Message message, ObjectMapper objectMapper) {
+        try {
+            return objectMapper.writeValueAsString(message);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e); // only strings and numbers
+        }
+    }
+
+    @Override
+    public void subscribe(Listener listener) {
+        listeners.add(listener);
+    }
+
+    private void listen() {
+        boolean connectedBefore = false;
+        while (running) {
+            try (Connection connection = DriverManager.getConnection(dataSourceProperties.determineUrl(),
+                    dataSourceProperties.determineUsername(), dataSourceProperties.determinePassword())) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + CHANNEL);
+                }
+                if (connectedBefore) {
+                    LOGGER.info("Listening to the user identity invalidations again, dropping the cached identities");
+                    listeners.forEach(Listener::onMissedInvalidations);
+                }
+                connectedBefore = true;
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (running) {
+                    PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            receive(notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                if (running) {
+                    LOGGER.warn("Lost the user identity invalidations connection, reconnecting", e);
+                    sleepBeforeReconnect();
+                }
+            }
+        }
+    }
+
+    private void receive(String payload) {
+        Message message;
+        try {
+            message = objectMapper.readValue(payload, Message.class);
+        } catch (JsonProcessingException e) {
+            LOGGER.error("Invalid user identity invalidation {}", payload, e);
+            return;
+        }
+        if (!nodeId.equals(message.node())) {
+            listeners.forEach(listener -> listener.onInvalidation(message.subs(), message.publishedAt()));
+        }
+    }
+
+    private void sleepBeforeReconnect() {
+        try {
+            Thread.sleep(RECONNECT_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        running = false;
+        listenerThread.interrupt();
+        listenerThread.join(POLL_TIMEOUT_MILLIS * 2L);
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Duration;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Wraps the primary datasource to route the read only transactions to a replica of the database,
+ * see {@link UserIdentityReadRoutingDataSource}. The liquibase migrations have their own datasource.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Configuration
+@ConditionalOnProperty(name = "user-identity.read-datasource.enabled", havingValue = "true")
+public class UserIdentityReadDataSourceConfiguration {
+
+    static final String PREFIX = "user-identity.read-datasource";
+
+    record Properties(String url, String username, String password, int maximumPoolSize,
+                      Duration maxLag, Duration lagCheckInterval, String lagQuery) {
+    }
+
+    // closes the pools on shutdown like the wrapped datasource
+    static final class ClosingLazyConnectionDataSourceProxy extends LazyConnectionDataSourceProxy implements Closeable {
+
+        ClosingLazyConnectionDataSourceProxy(UserIdentityReadRoutingDataSource routingDataSource) {
+            super(routingDataSource);
+        }
+
+        @Override
+        public void close() throws IOException {
+            ((UserIdentityReadRoutingDataSource) obtainTargetDataSource()).close();
+        }
+    }
+
+    // static as a post processor, instantiated before the other beans
+    @Bean
+    static BeanPostProcessor userIdentityReadDataSourcePostProcessor(Environment environment) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (!(bean instanceof DataSource primaryDataSource) || !"dataSource".equals(beanName)) {
+                    return bean;
+                }
+                Properties properties = Binder.get(environment).bind(PREFIX, Properties.class)
+                        .orElseThrow(() -> new IllegalStateException("Missing " + PREFIX + " configuration"));
+                HikariDataSource readDataSource = DataSourceBuilder.create()
+                        .type(HikariDataSource.class)
+                        .url(properties.url())
+                        .username(properties.username())
+                        .password(properties.password())
+                        .build();
+                readDataSource.setPoolName("read");
+                readDataSource.setMaximumPoolSize(properties.maximumPoolSize());
+                readDataSource.setMinimumIdle(1);
+                // the replica may be unreachable at startup, its connections are taken on demand
+                readDataSource.setInitializationFailTimeout(-1);
+                return new ClosingLazyConnectionDataSourceProxy(new UserIdentityReadRoutingDataSource(primaryDataSource,
+                        readDataSource, properties.maxLag(), properties.lagCheckInterval(), properties.lagQuery()));
+            }
+        };
+    }
+
+    @Bean
+    MeterBinder userIdentityReadDataSourceMetrics(DataSource dataSource) throws SQLException {
+        return dataSource.unwrap(UserIdentityReadRoutingDataSource.class);
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Routes the connections of the read only transactions to the read datasource, a replica of the
+ * primary database, and the others to the primary (user-identity.read-datasource). The replication
+ * lag is checked in the background every lag-check-interval, the reads go to the primary while
+ * the lag exceeds max-lag or after a failure to connect to the replica, until the next check.
+ * They also go to the primary for max-lag after an invalidation from another node, see
+ * {@link #readFromPrimaryForMaxLag}: the replica may not have the changed identities yet and
+ * the lookups would cache their previous version, the refreshes of the search and the replica
+ * would keep it.
+ * Must be wrapped in a LazyConnectionDataSourceProxy: the transactions take their connection
+ * before being marked read only, the target is only chosen at the first statement.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+final class UserIdentityReadRoutingDataSource extends AbstractRoutingDataSource implements MeterBinder, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserIdentityReadRoutingDataSource.class);
+
+    enum Target {
+        PRIMARY,
+        READ,
+    }
+
+    private final DataSource primaryDataSource;
+    private final DataSource readDataSource;
+    private final Duration maxLag;
+    private final String lagQuery;
+
+    // false until the first successful check
+    private volatile boolean readUsable;
+    private volatile double lagSeconds = Double.NaN;
+    // System.nanoTime() until which the reads go to the primary
+    private volatile long primaryUntil;
+    private final ScheduledExecutorService executor;
+
+    private final LongAdder primaryConnections = new LongAdder();
+    private final LongAdder readConnections = new LongAdder();
+    private final LongAdder unusableFallbacks = new LongAdder();
+    private final LongAdder failureFallbacks = new LongAdder();
+    private final LongAdder invalidationFallbacks = new LongAdder();
+
+    UserIdentityReadRoutingDataSource(DataSource primaryDataSource, DataSource readDataSource,
+                                      Duration maxLag, Duration lagCheckInterval, String lagQuery) {
+        this.primaryDataSource = primaryDataSource;
+        this.readDataSource = readDataSource;
+        this.maxLag = maxLag;
+        this.lagQuery = lagQuery;
+        setTargetDataSources(Map.of(Target.PRIMARY, primaryDataSource, Target.READ, readDataSource));
+        setDefaultTargetDataSource(primaryDataSource);
+        afterPropertiesSet();
+        primaryUntil = System.nanoTime();
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-identity-read-datasource");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::checkLagSafely, 0, lagCheckInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The routing datasource behind the datasource, when the read datasource is enabled.
+     */
+    static Optional<UserIdentityReadRoutingDataSource> find(DataSource dataSource) {
+        try {
+            return dataSource.isWrapperFor(UserIdentityReadRoutingDataSource.class)
+                    ? Optional.of(dataSource.unwrap(UserIdentityReadRoutingDataSource.class))
+                    : Optional.empty();
+        } catch (SQLException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Sends the reads to the primary for the next max-lag, called when identities were changed
+     * on another node: a replica within max-lag has them afterwards.
+     */
+    void readFromPrimaryForMaxLag() {
+        primaryUntil = System.nanoTime() + maxLag.toNanos();
+    }
+
+    boolean isReadingFromPrimary() {
+        return System.nanoTime() - primaryUntil < 0;
+    }
+
+    @Override
+    protected Target determineCurrentLookupKey() {
+        return readUsable && !isReadingFromPrimary() && TransactionSynchronizationManager.isCurrentTransactionReadOnly()
+                ? Target.READ : Target.PRIMARY;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (determineCurrentLookupKey() == Target.READ) {
+            try {
+                Connection connection = readDataSource.getConnection();
+                readConnections.increment();
+                return connection;
+            } catch (SQLException e) {
+                // until the next successful check
+                readUsable = false;
+                failureFallbacks.increment();
+                LOGGER.warn("Can't connect to the read datasource, reading from the primary: {}", e.getMessage());
+            }
+        } else if (TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            (readUsable ? invalidationFallbacks : unusableFallbacks).increment();
+        }
+        Connection connection = primaryDataSource.getConnection();
+        primaryConnections.increment();
+        return connection;
+    }
+
+    private void checkLagSafely() {
+        try {
+            checkLag();
+        } catch (SQLException | RuntimeException e) {
+            readUsable = false;
+            lagSeconds = Double.NaN;
+            LOGGER.warn("Can't check the lag of the read datasource, reading from the primary: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the replication lag of the read datasource, in seconds, and uses it for
+     * the reads when the lag is at most max-lag.
+     */
+    void checkLag() throws SQLException {
+        // a failure to connect during the check wins over its result
+        long failures = failureFallbacks.sum();
+        double lag;
+        try (Connection connection = readDataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(lagQuery)) {
+            lag = resultSet.next() ? resultSet.getDouble(1) : 0;
+        }
+        boolean usable = lag * 1000 <= maxLag.toMillis() && failureFallbacks.sum() == failures;
+        if (usable != readUsable) {
+            LOGGER.info("{} the read datasource, replication lag of {} s", usable ? "Reading from" : "Not reading from", lag);
+        }
+        lagSeconds = lag;
+        readUsable = usable;
+    }
+
+    boolean isReadUsable() {
+        return readUsable;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry meterRegistry) {
+        connectionsCounter(Target.PRIMARY, primaryConnections, meterRegistry);
+        connectionsCounter(Target.READ, readConnections, meterRegistry);
+        fallbacksCounter("unusable", unusableFallbacks, meterRegistry);
+        fallbacksCounter("failure", failureFallbacks, meterRegistry);
+        fallbacksCounter("invalidation", invalidationFallbacks, meterRegistry);
+        Gauge.builder("useridentity.datasource.read.lag", this, dataSource -> dataSource.lagSeconds)
+                .description("Replication lag of the read datasource at its last check")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+    }
+
+    private static void connectionsCounter(Target target, LongAdder count, MeterRegistry meterRegistry) {
+        FunctionCounter.builder("useridentity.datasource.connections", count, LongAdder::sum)
+                .description("Number of connections taken by target datasource")
+                .tag("target", target.name().toLowerCase(Locale.ROOT))
+                .register(meterRegistry);
+    }
+
+    private static void fallbacksCounter(String reason, LongAdder count, MeterRegistry meterRegistry) {
+        FunctionCounter.builder("useridentity.datasource.read.fallbacks", count, LongAdder::sum)
+                .description("Number of read only transactions sent to the primary")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        if (readDataSource instanceof Closeable closeable) {
+            closeable.close();
+        }
+        if (primaryDataSource instanceof Closeable closeable) {
+            closeable.close();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Full in-memory copy of the identities (user-identity.replica), the lookups don't query the
+ * database once it is loaded. It is loaded in the background after the startup from the snapshot
+ * file if any, then catches up with the change feed of the table (see the change_seq column),
+ * every catch-up-interval and when the other nodes publish invalidations. The identities saved
+ * here are put as they come. The snapshot is written every snapshot-interval and on shutdown.
+ * <p>
+ * The catch-ups apply all the changes they read but, like {@link UserIdentityService#getChanges},
+ * only move the change seq, also written in the snapshot, up to the settled changes: the changes
+ * of the last settle-window are read again by the next catch-ups, so that a change committed late
+ * with a lower change seq than an already read one is not missed. Until it is loaded, the lookups
+ * query the database.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+public class UserIdentityReplica {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserIdentityReplica.class);
+
+    static final int BATCH_SIZE = 10000;
+
+    private final boolean enabled;
+    private final Path snapshotPath;
+    private final Duration snapshotInterval;
+    private final Duration catchUpInterval;
+    private final Duration changesSettleWindow;
+    private final UserIdentityRepository userIdentityRepository;
+    private final UserIdentityDtoService userIdentityDtoService;
+    private final TransactionTemplate readOnlyTransactionTemplate;
+
+    private volatile UserIdentityReplicaTable table = new UserIdentityReplicaTable();
+    private volatile boolean loaded;
+    private final ScheduledExecutorService executor;
+
+    private final Timer snapshotTimer;
+
+    public UserIdentityReplica(
+        @Value("${user-identity.replica.enabled}") boolean enabled,
+        @Value("${user-identity.replica.snapshot-path}") String snapshotPath,
+        @Value("${user-identity.replica.snapshot-interval}") Duration snapshotInterval,
+        @Value("${user-identity.replica.catch-up-interval}") Duration catchUpInterval,
+        @Value("${user-identity.changes.settle-window}") Duration changesSettleWindow,
+        UserIdentityRepository userIdentityRepository,
+        UserIdentityDtoService userIdentityDtoService,
+        PlatformTransactionManager transactionManager,
+        MeterRegistry meterRegistry
+    ) {
+        this.enabled = enabled;
+        this.snapshotPath = snapshotPath.isEmpty() ? null : Path.of(snapshotPath);
+        this.snapshotInterval = snapshotInterval;
+        this.catchUpInterval = catchUpInterval;
+        this.changesSettleWindow = changesSettleWindow;
+        this.userIdentityRepository = userIdentityRepository;
+        this.userIdentityDtoService = userIdentityDtoService;
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate.setReadOnly(true);
+
+        snapshotTimer = Timer.builder("useridentity.replica.snapshot")
+                .description("Time to write the snapshot of the replica")
+                .register(meterRegistry);
+        Gauge.builder("useridentity.replica.size", this, replica -> replica.table.estimatedBytes())
+                .description("Estimated memory used by the replica")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("useridentity.replica.count", this, replica -> replica.table.size())
+                .description("Number of identities in the replica")
+                .register(meterRegistry);
+        Gauge.builder("useridentity.replica.change.seq", this, replica -> replica.table.getChangeSeq())
+                .description("Last change seq of the table read by the replica")
+                .register(meterRegistry);
+
+        executor = enabled ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-identity-replica");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void scheduleCatchUps() {
+        if (enabled) {
+            executor.scheduleWithFixedDelay(this::catchUpSafely, 0, catchUpInterval.toMillis(), TimeUnit.MILLISECONDS);
+            if (snapshotPath != null) {
+                executor.scheduleWithFixedDelay(this::writeSnapshotSafely, snapshotInterval.toMillis(),
+                        snapshotInterval.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // for the missed invalidations
+    public void requestCatchUp() {
+        if (enabled && !executor.isShutdown()) {
+            executor.execute(this::catchUpSafely);
+        }
+    }
+
+    private void catchUpSafely() {
+        try {
+            if (loaded) {
+                catchUp();
+            } else {
+                load();
+            }
+        } catch (RuntimeException e) {
+            // retried on the next catch-up
+            LOGGER.error("Error catching up the user identity replica", e);
+        }
+    }
+
+    synchronized void load() {
+        long start = System.nanoTime();
+        readSnapshot();
+        int read = catchUp();
+        loaded = true;
+        LOGGER.info("Loaded the user identity replica of {} identities in {} ms, {} read from the database, about {} bytes",
+                table.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), read, table.estimatedBytes());
+    }
+
+    private void readSnapshot() {
+        if (snapshotPath == null) {
+            return;
+        }
+        try {
+            Optional<UserIdentityReplicaTable> snapshot = UserIdentityReplicaTable.readSnapshot(snapshotPath,
+                    userIdentityDtoService.getNamesVersion());
+            if (snapshot.isPresent()) {
+                table = snapshot.get();
+            } else {
+                LOGGER.info("Ignored the user identity replica snapshot written in another format or derived with other names rules");
+            }
+        } catch (NoSuchFileException e) {
+            LOGGER.info("No user identity replica snapshot {}, reading all the identities", snapshotPath);
+        } catch (IOException e) {
+            LOGGER.warn("Can't read the user identity replica snapshot, reading all the identities", e);
+        }
+    }
+
+    /**
+     * Reads the changes since the last settled change seq read.
+     * @return the number of changed identities
+     */
+    synchronized int catchUp() {
+        int read = 0;
+        boolean settled = true;
+        int batchSize = BATCH_SIZE;
+        while (settled && batchSize == BATCH_SIZE) {
+            long changeSeq = table.getChangeSeq();
+            Instant settledAt = Instant.now().minus(changesSettleWindow);
+            List<UserIdentityNames> batch = readOnlyTransactionTemplate.execute(status -> {
+                List<UserIdentityNames> changes = userIdentityRepository.findNamesByChangeSeqGreaterThanOrderByChangeSeq(
+                        changeSeq, Limit.of(BATCH_SIZE));
+                int settledCount = UserIdentityService.countSettled(changes, settledAt);
+                put(changes, settledCount > 0 ? changes.get(settledCount - 1).getChangeSeq() : 0);
+                return changes;
+            });
+            // the next batches are read by the next catch-ups, after the not settled changes
+            settled = UserIdentityService.countSettled(batch, settledAt) == batch.size();
+            batchSize = batch.size();
+            read += batchSize;
+        }
+        return read;
+    }
+
+    // Must be called in a transaction. The change seq is moved to changeSeq if greater, so with 0
+    // the changes before the ones of these rows are still read by the next catch-up.
+    private void put(List<UserIdentityNames> userIdentitiesNames, long changeSeq) {
+        if (userIdentitiesNames.isEmpty()) {
+            return;
+        }
+        List<UserIdentityReplicaTable.Entry> entries = new ArrayList<>(userIdentitiesNames.size());
+        // the stored names are enough unless they were derived with outdated heuristics
+        List<String> outdatedSubs = new ArrayList<>();
+        for (UserIdentityNames userIdentityNames : userIdentitiesNames) {
+            userIdentityDtoService.toDto(userIdentityNames).ifPresentOrElse(
+                userIdentity -> entries.add(new UserIdentityReplicaTable.Entry(userIdentity, userIdentityNames.getContentHash())),
+                () -> outdatedSubs.add(userIdentityNames.getSub()));
+        }
+        List<String> invalidSubs = new ArrayList<>();
+        if (!outdatedSubs.isEmpty()) {
+            for (UserIdentityEntity userIdentityEntity : userIdentityRepository.findAllBySubIn(outdatedSubs)) {
+                try {
+                    entries.add(new UserIdentityReplicaTable.Entry(userIdentityDtoService.toDto(userIdentityEntity),
+                            userIdentityEntity.getContentHash()));
+                } catch (UserIdentityException e) {
+                    invalidSubs.add(userIdentityEntity.getSub());
+                }
+            }
+        }
+        table.putAll(entries, invalidSubs, changeSeq);
+    }
+
+    public void put(UserIdentity userIdentity, String contentHash) {
+        if (enabled) {
+            table.putAll(List.of(new UserIdentityReplicaTable.Entry(userIdentity, contentHash)), List.of(), 0);
+        }
+    }
+
+    // the identities changed on the other nodes, read in the background
+    public void refresh(Collection<String> subs) {
+        if (enabled && !executor.isShutdown()) {
+            executor.execute(() -> readOnlyTransactionTemplate.executeWithoutResult(status ->
+                    put(userIdentityRepository.findNamesBySubIn(subs), 0)));
+        }
+    }
+
+    /**
+     * Whether {@link #get} answers for the sub: the replica is loaded and the names
+     * of the sub could be derived.
+     */
+    public boolean covers(String sub) {
+        return loaded && !table.isInvalid(sub);
+    }
+
+    /**
+     * The identity of the sub, empty for the unknown subs.
+     */
+    public Optional<UserIdentity> get(String sub) {
+        return table.get(sub).map(UserIdentityReplicaTable.Entry::userIdentity);
+    }
+
+    /**
+     * The identity of the sub and its content hash for the etags, empty for the unknown subs.
+     */
+    Optional<UserIdentityReplicaTable.Entry> getEntry(String sub) {
+        return table.get(sub);
+    }
+
+    private void writeSnapshotSafely() {
+        try {
+            writeSnapshot();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Error writing the user identity replica snapshot", e);
+        }
+    }
+
+    synchronized void writeSnapshot() throws IOException {
+        if (snapshotPath == null || !loaded) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (snapshotPath.getParent() != null) {
+            Files.createDirectories(snapshotPath.getParent());
+        }
+        table.writeSnapshot(snapshotPath, userIdentityDtoService.getNamesVersion());
+        snapshotTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            writeSnapshotSafely();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+
+/**
+ * Compact table of all the identities: the subs, the ids of their first and last names and their
+ * content hashes (for the etags) in parallel arrays, the names being interned in a pool as most
+ * of them are shared by many users, and an open addressing index of the subs. The identities are
+ * never removed, like the rows.
+ * <p>
+ * The table is written to and read from a memory mapped snapshot file, with the last change
+ * seq applied, to only read the changes since at startup.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+final class UserIdentityReplicaTable {
+
+    // the content hash is null for the rows written before it was stored
+    record Entry(UserIdentity userIdentity, String contentHash) {
+    }
+
+    private static final int NO_NAME = -1;
+    // the names of the idtoken can't be derived, the lookups read it from the database to fail like without replica
+    private static final int INVALID = -2;
+
+    private static final int SNAPSHOT_MAGIC = 0x55495250; // UIRP
+    private static final int SNAPSHOT_FORMAT = 2;
+    private static final int SNAPSHOT_HEADER_BYTES = 4 + 4 + 4 + 8 + 4 + 4;
+
+    // rough sizes of the objects on a 64 bits jvm with compressed oops, for the memory estimate
+    private static final int STRING_BYTES = 40;
+    private static final int HASH_MAP_ENTRY_BYTES = 48;
+
+    // sha-256, see UserIdentityDtoService.contentHash, all zeros when there is none
+    private static final int CONTENT_HASH_BYTES = 32;
+    private static final byte[] NO_CONTENT_HASH = new byte[CONTENT_HASH_BYTES];
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private String[] subs;
+    private int[] firstNames;
+    private int[] lastNames;
+    private byte[] contentHashes;
+    private int count;
+    // indexes + 1 of the subs by hash with linear probing, 0 for the free slots, at most half full
+    private int[] slots;
+
+    private String[] names;
+    private int namesCount;
+    private final Map<String, Integer> nameIds = new HashMap<>();
+
+    private long changeSeq;
+    private long chars;
+
+    UserIdentityReplicaTable() {
+        this(1024, 1024);
+    }
+
+    private UserIdentityReplicaTable(int expectedCount, int expectedNamesCount) {
+        int capacity = Math.max(expectedCount, 16);
+        subs = new String[capacity];
+        firstNames = new int[capacity];
+        lastNames = new int[capacity];
+        contentHashes = new byte[capacity * CONTENT_HASH_BYTES];
+        slots = new int[Integer.highestOneBit(capacity) * 4];
+        names = new String[Math.max(expectedNamesCount, 16)];
+    }
+
+    private static int hash(String sub) {
+        int hash = sub.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    // the slot of the sub, or the free slot where to add it
+    private int slot(int[] slots, String sub) {
+        int mask = slots.length - 1;
+        int slot = hash(sub) & mask;
+        while (slots[slot] != 0 && !subs[slots[slot] - 1].equals(sub)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int nameId(String name) {
+        if (name == null) {
+            return NO_NAME;
+        }
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            if (namesCount == names.length) {
+                names = Arrays.copyOf(names, namesCount * 2);
+            }
+            id = namesCount++;
+            names[id] = name;
+            nameIds.put(name, id);
+            chars += name.length();
+        }
+        return id;
+    }
+
+    private void put(String sub, int firstName, int lastName, byte[] contentHash) {
+        int slot = slot(slots, sub);
+        int index = slots[slot] - 1;
+        if (index < 0) {
+            if (count == subs.length) {
+                subs = Arrays.copyOf(subs, count * 2);
+                firstNames = Arrays.copyOf(firstNames, count * 2);
+                lastNames = Arrays.copyOf(lastNames, count * 2);
+                contentHashes = Arrays.copyOf(contentHashes, count * 2 * CONTENT_HASH_BYTES);
+            }
+            index = count++;
+            subs[index] = sub;
+            slots[slot] = index + 1;
+            chars += sub.length();
+            if (count * 2 > slots.length) {
+                rehash();
+            }
+        }
+        firstNames[index] = firstName;
+        lastNames[index] = lastName;
+        System.arraycopy(contentHash, 0, contentHashes, index * CONTENT_HASH_BYTES, CONTENT_HASH_BYTES);
+    }
+
+    private static byte[] encodeContentHash(String contentHash) {
+        return contentHash != null && contentHash.length() == CONTENT_HASH_BYTES * 2
+                ? HexFormat.of().parseHex(contentHash) : NO_CONTENT_HASH;
+    }
+
+    private String contentHash(int index) {
+        int from = index * CONTENT_HASH_BYTES;
+        return Arrays.equals(contentHashes, from, from + CONTENT_HASH_BYTES, NO_CONTENT_HASH, 0, CONTENT_HASH_BYTES)
+                ? null : HexFormat.of().formatHex(contentHashes, from, from + CONTENT_HASH_BYTES);
+    }
+
+    private void rehash() {
+        int[] newSlots = new int[slots.length * 2];
+        for (int index = 0; index < count; index++) {
+            newSlots[slot(newSlots, subs[index])] = index + 1;
+        }
+        slots = newSlots;
+    }
+
+    /**
+     * Adds or replaces the identities and the subs whose names can't be derived,
+     * and records the change seq of the database they come from if greater.
+     */
+    void putAll(Collection<Entry> entries, Collection<String> invalidSubs, long changeSeq) {
+        lock.writeLock().lock();
+        try {
+            for (Entry entry : entries) {
+                UserIdentity userIdentity = entry.userIdentity();
+                put(userIdentity.getSub(), nameId(userIdentity.getFirstName()), nameId(userIdentity.getLastName()),
+                        encodeContentHash(entry.contentHash()));
+            }
+            for (String sub : invalidSubs) {
+                put(sub, INVALID, INVALID, NO_CONTENT_HASH);
+            }
+            this.changeSeq = Math.max(this.changeSeq, changeSeq);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int index(String sub) {
+        return slots[slot(slots, sub)] - 1;
+    }
+
+    /**
+     * The identity of the sub and its content hash, empty when it is unknown or invalid.
+     */
+    Optional<Entry> get(String sub) {
+        lock.readLock().lock();
+        try {
+            int index = index(sub);
+            if (index < 0 || firstNames[index] == INVALID) {
+                return Optional.empty();
+            }
+            return Optional.of(new Entry(new UserIdentity(sub, name(firstNames[index]), name(lastNames[index])),
+                    contentHash(index)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private String name(int id) {
+        return id == NO_NAME ? null : names[id];
+    }
+
+    boolean isInvalid(String sub) {
+        lock.readLock().lock();
+        try {
+            int index = index(sub);
+            return index >= 0 && firstNames[index] == INVALID;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long getChangeSeq() {
+        lock.readLock().lock();
+        try {
+            return changeSeq;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Latin-1 strings being stored with a byte per char
+    long estimatedBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) subs.length * (4 + 4 + 4 + CONTENT_HASH_BYTES) + slots.length * 4L + (long) count * STRING_BYTES
+                    + names.length * 4L + namesCount * (long) (STRING_BYTES + HASH_MAP_ENTRY_BYTES) + chars;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the table with the names version it was derived with to a temporary file
+     * moved to the path once complete. Copied first, the table is not locked while writing.
+     */
+    void writeSnapshot(Path path, int namesVersion) throws IOException {
+        String[] snapshotSubs;
+        int[] snapshotFirstNames;
+        int[] snapshotLastNames;
+        byte[] snapshotContentHashes;
+        String[] snapshotNames;
+        long snapshotChangeSeq;
+        lock.readLock().lock();
+        try {
+            snapshotSubs = Arrays.copyOf(subs, count);
+            snapshotFirstNames = Arrays.copyOf(firstNames, count);
+            snapshotLastNames = Arrays.copyOf(lastNames, count);
+            snapshotContentHashes = Arrays.copyOf(contentHashes, count * CONTENT_HASH_BYTES);
+            snapshotNames = Arrays.copyOf(names, namesCount);
+            snapshotChangeSeq = changeSeq;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        byte[][] encodedNames = encode(snapshotNames);
+        byte[][] encodedSubs = encode(snapshotSubs);
+        long size = SNAPSHOT_HEADER_BYTES + encodedSize(encodedNames) + encodedSize(encodedSubs)
+                + (8L + CONTENT_HASH_BYTES) * snapshotSubs.length;
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_FORMAT).putInt(namesVersion).putLong(snapshotChangeSeq)
+                    .putInt(snapshotNames.length).putInt(snapshotSubs.length);
+            for (byte[] name : encodedNames) {
+                buffer.putInt(name.length).put(name);
+            }
+            for (int i = 0; i < encodedSubs.length; i++) {
+                buffer.putInt(encodedSubs[i].length).put(encodedSubs[i]).putInt(snapshotFirstNames[i]).putInt(snapshotLastNames[i])
+                        .put(snapshotContentHashes, i * CONTENT_HASH_BYTES, CONTENT_HASH_BYTES);
+            }
+            buffer.force();
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[][] encode(String[] strings) {
+        byte[][] encoded = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return encoded;
+    }
+
+    private static long encodedSize(byte[][] encoded) {
+        long size = 0;
+        for (byte[] bytes : encoded) {
+            size += 4 + bytes.length;
+        }
+        return size;
+    }
+
+    /**
+     * Reads a snapshot written by {@link #writeSnapshot}.
+     * @return empty when the snapshot was derived with other names rules or written in another format
+     * @throws IOException when the file can't be read or is not a valid snapshot
+     */
+    static Optional<UserIdentityReplicaTable> readSnapshot(Path path, int namesVersion) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a user identity replica snapshot: " + path);
+            }
+            if (buffer.getInt() != SNAPSHOT_FORMAT || buffer.getInt() != namesVersion) {
+                return Optional.empty();
+            }
+            long changeSeq = buffer.getLong();
+            int namesCount = buffer.getInt();
+            int count = buffer.getInt();
+            UserIdentityReplicaTable table = new UserIdentityReplicaTable(count, namesCount);
+            for (int i = 0; i < namesCount; i++) {
+                table.nameId(readString(buffer));
+            }
+            for (int i = 0; i < count; i++) {
+                String sub = readString(buffer);
+                int firstName = buffer.getInt();
+                int lastName = buffer.getInt();
+                byte[] contentHash = new byte[CONTENT_HASH_BYTES];
+                buffer.get(contentHash);
+                if (firstName < INVALID || firstName >= namesCount || lastName < INVALID || lastName >= namesCount) {
+                    throw new IOException("Invalid name id in the user identity replica snapshot: " + path);
+                }
+                table.put(sub, firstName, lastName, contentHash);
+            }
+            table.changeSeq = changeSeq;
+            return Optional.of(table);
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Truncated user identity replica snapshot: " + path, e);
+        }
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
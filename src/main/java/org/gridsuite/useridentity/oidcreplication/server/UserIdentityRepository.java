@@ -1,11 +1,45 @@
 package org.gridsuite.useridentity.oidcreplication.server;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
-public interface UserIdentityRepository extends JpaRepository<UserIdentityEntity, UUID> {
+public interface UserIdentityRepository extends JpaRepository<UserIdentityEntity, UUID>, UserIdentityUpsertRepository {
 
+    // The lookups run outside of the service transactions, read only to be routed
+    // to the read datasource, see UserIdentityReadRoutingDataSource
+    @Transactional(readOnly = true)
     Optional<UserIdentityEntity> findBySub(String sub);
+
+    @Transactional(readOnly = true)
+    List<UserIdentityEntity> findAllBySubIn(Collection<String> subs);
+
+    @Transactional(readOnly = true)
+    Optional<UserIdentityNames> findNamesBySub(String sub);
+
+    @Transactional(readOnly = true)
+    List<UserIdentityNames> findNamesBySubIn(Collection<String> subs);
+
+    List<UserIdentityNames> findNamesBySubGreaterThanOrderBySub(String sub, Limit limit);
+
+    List<UserIdentityNames> findNamesByChangeSeqGreaterThanOrderByChangeSeq(long changeSeq, Limit limit);
+
+    @Query("SELECT u.sub FROM UserIdentityEntity u WHERE u.sub > :afterSub ORDER BY u.sub")
+    List<String> findSubs(@Param("afterSub") String afterSub, Limit limit);
+
+    // the rows with outdated names, and with claimsStorage the rows not converted yet to the CLAIMS storage
+    @Query("SELECT u FROM UserIdentityEntity u WHERE (u.namesVersion IS NULL OR u.namesVersion <> :namesVersion OR u.contentHash IS NULL"
+            + " OR :claimsStorage = true AND (u.claims IS NULL OR :keepRawIdtoken = false AND u.idtoken IS NOT NULL))"
+            + " AND u.id > :afterId ORDER BY u.id")
+    List<UserIdentityEntity> findOutdated(@Param("namesVersion") int namesVersion,
+                                          @Param("claimsStorage") boolean claimsStorage,
+                                          @Param("keepRawIdtoken") boolean keepRawIdtoken,
+                                          @Param("afterId") UUID afterId, Limit limit);
 }
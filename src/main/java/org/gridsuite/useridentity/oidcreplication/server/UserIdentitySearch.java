@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Search of the identities by the beginning of the words of their names (user-identity.search),
+ * from an in-memory {@link UserIdentityNameIndex}. Like the known subs, the index is built
+ * in the background after the startup then rebuilt every rebuild-interval, and the identities
+ * saved here or on the other nodes are indexed as they come. Until the first build, only the
+ * identities saved since the startup are found.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+public class UserIdentitySearch {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserIdentitySearch.class);
+
+    static final int BATCH_SIZE = 10000;
+    static final int MAX_LIMIT = 100;
+
+    private final boolean enabled;
+    private final Duration rebuildInterval;
+    private final UserIdentityRepository userIdentityRepository;
+    private final TransactionTemplate readOnlyTransactionTemplate;
+
+    private volatile UserIdentityNameIndex index = new UserIdentityNameIndex();
+    // index being built, also receives the identities saved during the build
+    private volatile UserIdentityNameIndex building;
+    private final ScheduledExecutorService executor;
+
+    private final Timer searchTimer;
+
+    public UserIdentitySearch(
+        @Value("${user-identity.search.enabled}") boolean enabled,
+        @Value("${user-identity.search.rebuild-interval}") Duration rebuildInterval,
+        UserIdentityRepository userIdentityRepository,
+        PlatformTransactionManager transactionManager,
+        MeterRegistry meterRegistry
+    ) {
+        this.enabled = enabled;
+        this.rebuildInterval = rebuildInterval;
+        this.userIdentityRepository = userIdentityRepository;
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate.setReadOnly(true);
+
+        searchTimer = Timer.builder("useridentity.search")
+                .description("Time to search the identities by name")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        Gauge.builder("useridentity.search.index.size", this, search -> search.index.estimatedBytes())
+                .description("Estimated memory used by the index")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("useridentity.search.index.count", this, search -> search.index.size())
+                .description("Number of identities in the index")
+                .register(meterRegistry);
+
+        executor = enabled ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-identity-search");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void scheduleRebuilds() {
+        if (enabled) {
+            executor.scheduleWithFixedDelay(this::rebuildSafely, 0, rebuildInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // for the missed invalidations, we don't know which identities changed
+    public void requestRebuild() {
+        if (enabled && !executor.isShutdown()) {
+            executor.execute(this::rebuildSafely);
+        }
+    }
+
+    private void rebuildSafely() {
+        try {
+            rebuild();
+        } catch (RuntimeException e) {
+            // keep the previous index, retried on the next rebuild
+            building = null;
+            LOGGER.error("Error building the user identity search index", e);
+        }
+    }
+
+    synchronized void rebuild() {
+        long start = System.nanoTime();
+        UserIdentityNameIndex newIndex = new UserIdentityNameIndex();
+        building = newIndex;
+        // keyset pagination on the sub, the names stored with outdated rules are
+        // indexed anyway, they are derived again by UserIdentityNamesBackfill
+        String afterSub = "";
+        while (afterSub != null) {
+            String batchAfterSub = afterSub;
+            List<UserIdentityNames> batch = readOnlyTransactionTemplate.execute(status ->
+                    userIdentityRepository.findNamesBySubGreaterThanOrderBySub(batchAfterSub, Limit.of(BATCH_SIZE)));
+            for (UserIdentityNames userIdentityNames : batch) {
+                if (userIdentityNames.getFirstName() != null || userIdentityNames.getLastName() != null) {
+                    // the identities saved during the build are more recent
+                    newIndex.put(new UserIdentity(userIdentityNames.getSub(), userIdentityNames.getFirstName(),
+                            userIdentityNames.getLastName()), false);
+                }
+            }
+            afterSub = batch.size() < BATCH_SIZE ? null : batch.get(batch.size() - 1).getSub();
+        }
+        index = newIndex;
+        building = null;
+        LOGGER.info("Built the user identity search index of {} identities in {} ms, about {} bytes", newIndex.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), newIndex.estimatedBytes());
+    }
+
+    public void put(UserIdentity userIdentity) {
+        if (!enabled) {
+            return;
+        }
+        // building first: the index is replaced by building at the end of a build
+        UserIdentityNameIndex currentBuilding = building;
+        if (currentBuilding != null) {
+            currentBuilding.put(userIdentity, true);
+        }
+        index.put(userIdentity, true);
+    }
+
+    // the identities changed on the other nodes, read in the background
+    public void refresh(Collection<String> subs) {
+        if (enabled && !executor.isShutdown()) {
+            executor.execute(() -> readOnlyTransactionTemplate.executeWithoutResult(status ->
+                    userIdentityRepository.findNamesBySubIn(subs).forEach(userIdentityNames -> put(new UserIdentity(
+                            userIdentityNames.getSub(), userIdentityNames.getFirstName(), userIdentityNames.getLastName())))));
+        }
+    }
+
+    /**
+     * @return the identities whose names have words starting with each word of the query,
+     * empty if the search is disabled
+     */
+    public Optional<List<UserIdentity>> search(String query, int limit) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        return Optional.of(searchTimer.record(() -> index.search(query, Math.clamp(limit, 1, MAX_LIMIT))));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
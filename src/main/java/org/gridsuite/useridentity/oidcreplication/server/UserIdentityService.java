@@ -6,11 +6,45 @@
  */
 package org.gridsuite.useridentity.oidcreplication.server;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentitiesResult;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentityChanges;
 import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentityError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.data.domain.Limit;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 
 
 /**
@@ -19,30 +53,472 @@ import org.springframework.transaction.annotation.Transactional;
 @Service
 public class UserIdentityService {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserIdentityService.class);
+
+    // Keep the IN (...) lists to a reasonable size, the batch endpoint
+    // is called with hundreds of subs
+    static final int SUBS_CHUNK_SIZE = 500;
+
+    // Bounded by size and ttl, see spring.cache.caffeine.spec
+    static final String USER_IDENTITIES_CACHE = "userIdentities";
+
+    static final String USER_IDENTITY_ETAGS_CACHE = "userIdentityETags";
+
+    static final int CHANGES_MAX_LIMIT = 5000;
+
     private UserIdentityRepository userIdentityRepository;
     private UserIdentityDtoService userIdentityDtoService;
+    private UserIdentityWriteBehindBuffer userIdentityWriteBehindBuffer;
+    private UserIdentityInvalidationBus userIdentityInvalidationBus;
+    private UserIdentityKnownSubs userIdentityKnownSubs;
+    private UserIdentitySearch userIdentitySearch;
+    private UserIdentityReplica userIdentityReplica;
+    private UserIdentityLookupCoalescer userIdentityLookupCoalescer;
+    private Cache userIdentitiesCache;
+    private Cache userIdentityETagsCache;
+    private MeterRegistry meterRegistry;
+    private Duration changesSettleWindow;
+
+    private Timer findBySubTimer;
+    private Timer findNamesBySubTimer;
+    private Timer findAllBySubInTimer;
+    private Timer findNamesBySubInTimer;
+    private Timer saveValidationTimer;
+    private Timer saveWriteTimer;
+    private DistributionSummary batchSizeSummary;
+    private DistributionSummary batchDataSummary;
+    private DistributionSummary batchErrorsSummary;
 
     public UserIdentityService(
         UserIdentityRepository userIdentityRepository,
-        UserIdentityDtoService userIdentityDtoService
+        UserIdentityDtoService userIdentityDtoService,
+        UserIdentityWriteBehindBuffer userIdentityWriteBehindBuffer,
+        UserIdentityInvalidationBus userIdentityInvalidationBus,
+        UserIdentityKnownSubs userIdentityKnownSubs,
+        UserIdentitySearch userIdentitySearch,
+        UserIdentityReplica userIdentityReplica,
+        UserIdentityLookupCoalescer userIdentityLookupCoalescer,
+        CacheManager cacheManager,
+        MeterRegistry meterRegistry,
+        @Value("${user-identity.changes.settle-window}") Duration changesSettleWindow
     ) {
         this.userIdentityRepository = userIdentityRepository;
         this.userIdentityDtoService = userIdentityDtoService;
+        this.userIdentityWriteBehindBuffer = userIdentityWriteBehindBuffer;
+        this.userIdentityInvalidationBus = userIdentityInvalidationBus;
+        this.userIdentityKnownSubs = userIdentityKnownSubs;
+        this.userIdentitySearch = userIdentitySearch;
+        this.userIdentityReplica = userIdentityReplica;
+        this.userIdentityLookupCoalescer = userIdentityLookupCoalescer;
+        this.userIdentitiesCache = cacheManager.getCache(USER_IDENTITIES_CACHE);
+        this.userIdentityETagsCache = cacheManager.getCache(USER_IDENTITY_ETAGS_CACHE);
+        this.meterRegistry = meterRegistry;
+        this.changesSettleWindow = changesSettleWindow;
+
+        findBySubTimer = lookupTimer("findBySub", meterRegistry);
+        findNamesBySubTimer = lookupTimer("findNamesBySub", meterRegistry);
+        findAllBySubInTimer = lookupTimer("findAllBySubIn", meterRegistry);
+        findNamesBySubInTimer = lookupTimer("findNamesBySubIn", meterRegistry);
+        saveValidationTimer = saveTimer("validation", meterRegistry);
+        saveWriteTimer = saveTimer("write", meterRegistry);
+        batchSizeSummary = DistributionSummary.builder("useridentity.batch.size")
+                .description("Number of distinct subs per batch lookup")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        batchDataSummary = batchResultSummary("data", meterRegistry);
+        batchErrorsSummary = batchResultSummary("errors", meterRegistry);
     }
 
-    @Transactional(readOnly = true)
+    private static Timer lookupTimer(String query, MeterRegistry meterRegistry) {
+        return Timer.builder("useridentity.lookup")
+                .description("Time of the database lookups")
+                .tag("query", query)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private static Timer saveTimer(String phase, MeterRegistry meterRegistry) {
+        // validation: parsing of the idtoken, write: upsert or write-behind
+        return Timer.builder("useridentity.save")
+                .description("Time of the phases of the saves")
+                .tag("phase", phase)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private static DistributionSummary batchResultSummary(String result, MeterRegistry meterRegistry) {
+        return DistributionSummary.builder("useridentity.batch.result")
+                .description("Number of identities and of errors per batch lookup")
+                .tag("result", result)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private void countError(String operation, String code) {
+        Counter.builder("useridentity.errors")
+                .description("Number of errors by error code")
+                .tag("operation", operation)
+                .tag("code", code)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    // Only known identities are cached, a missing user may log in at any time
+    // Not transactional so that the unknown subs don't even take a connection,
+    // the queries run in the repository transactions
+    @Cacheable(cacheNames = USER_IDENTITIES_CACHE, key = "#sub", unless = "#result == null")
     public Optional<UserIdentity> getIdentity(String sub) {
-        return userIdentityRepository.findBySub(sub).map(userIdentityDtoService::toDto);
+        Optional<UserIdentity> pending = getPendingIdentity(sub);
+        if (pending.isPresent()) {
+            return pending;
+        }
+        if (userIdentityReplica.covers(sub)) {
+            return userIdentityReplica.get(sub);
+        }
+        if (!userIdentityKnownSubs.mightBeKnown(sub)) {
+            return Optional.empty();
+        }
+        try {
+            return userIdentityLookupCoalescer.load(sub, () -> loadIdentity(sub));
+        } catch (UserIdentityException e) {
+            getUserSpecificErrorCode(e).ifPresent(code -> countError("get", code));
+            throw e;
+        }
     }
 
-    @Transactional
-    public UserIdentity save(String sub, String idtoken) {
+    private Optional<UserIdentity> loadIdentity(String sub) {
+        // the stored names are enough unless they were derived with outdated heuristics
+        return findNamesBySubTimer.record(() -> userIdentityRepository.findNamesBySub(sub)).flatMap(userIdentityNames ->
+                userIdentityDtoService.toDto(userIdentityNames)
+                        .or(() -> findBySubTimer.record(() -> userIdentityRepository.findBySub(sub)).map(userIdentityDtoService::toDto)));
+    }
+
+    // read your writes when the saves are buffered
+    private Optional<UserIdentity> getPendingIdentity(String sub) {
+        return userIdentityWriteBehindBuffer.getPending(sub).map(userIdentityEntity -> new UserIdentity(
+                sub, userIdentityEntity.getFirstName(), userIdentityEntity.getLastName()));
+    }
+
+    // Strong etag of the identity of a sub, its dto only depends on the claims
+    // identified by the content hash and on the current names rules
+    private String toETag(String contentHash) {
+        return contentHash != null ? "\"" + contentHash + "-" + userIdentityDtoService.getNamesVersion() + "\"" : null;
+    }
+
+    @Cacheable(cacheNames = USER_IDENTITY_ETAGS_CACHE, key = "#sub", unless = "#result == null")
+    public Optional<String> getIdentityETag(String sub) {
+        Optional<UserIdentityEntity> pending = userIdentityWriteBehindBuffer.getPending(sub);
+        if (pending.isPresent()) {
+            return Optional.ofNullable(toETag(pending.get().getContentHash()));
+        }
+        if (userIdentityReplica.covers(sub)) {
+            return userIdentityReplica.getEntry(sub).map(entry -> toETag(entry.contentHash()));
+        }
+        if (!userIdentityKnownSubs.mightBeKnown(sub)) {
+            return Optional.empty();
+        }
+        return findNamesBySubTimer.record(() -> userIdentityRepository.findNamesBySub(sub))
+                .map(userIdentityNames -> toETag(userIdentityNames.getContentHash()));
+    }
+
+    // Combines the etags of all the subs, cheaper to compute than the identities.
+    public String getIdentitiesETag(Collection<String> subs) {
+        Set<String> distinctSubs = new LinkedHashSet<>(subs);
+        return getIdentitiesETag(distinctSubs, getIdentityETags(distinctSubs));
+    }
+
+    // The etags of the subs: no value for the rows without content hash, absent for the unknown subs
+    Map<String, Optional<String>> getIdentityETags(Set<String> distinctSubs) {
+        Map<String, Optional<String>> eTags = new HashMap<>();
+
+        List<String> missingSubs = new ArrayList<>();
+        for (String sub : distinctSubs) {
+            String cached = userIdentityETagsCache.get(sub, String.class);
+            if (cached == null) {
+                cached = userIdentityWriteBehindBuffer.getPending(sub)
+                        .map(userIdentityEntity -> toETag(userIdentityEntity.getContentHash())).orElse(null);
+            }
+            if (cached != null) {
+                eTags.put(sub, Optional.of(cached));
+            } else if (userIdentityReplica.covers(sub)) {
+                userIdentityReplica.getEntry(sub).ifPresent(entry -> eTags.put(sub, Optional.ofNullable(toETag(entry.contentHash()))));
+            } else if (userIdentityKnownSubs.mightBeKnown(sub)) {
+                missingSubs.add(sub);
+            }
+        }
+        for (int i = 0; i < missingSubs.size(); i += SUBS_CHUNK_SIZE) {
+            List<String> chunk = missingSubs.subList(i, Math.min(i + SUBS_CHUNK_SIZE, missingSubs.size()));
+            for (UserIdentityNames userIdentityNames : findNamesBySubInTimer.record(() -> userIdentityRepository.findNamesBySubIn(chunk))) {
+                String eTag = toETag(userIdentityNames.getContentHash());
+                if (eTag != null) {
+                    userIdentityETagsCache.put(userIdentityNames.getSub(), eTag);
+                }
+                eTags.put(userIdentityNames.getSub(), Optional.ofNullable(eTag));
+            }
+        }
+        return eTags;
+    }
+
+    String getIdentitiesETag(Set<String> distinctSubs, Map<String, Optional<String>> eTags) {
+        MessageDigest digest = UserIdentityDtoService.newSha256Digest();
+        for (String sub : distinctSubs) {
+            Optional<String> eTag = eTags.get(sub);
+            digest.update(sub.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update((eTag == null ? "-" : eTag.orElse("")).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return "\"" + HexFormat.of().formatHex(digest.digest()) + "\"";
+    }
+
+    private Optional<String> getUserSpecificErrorCode(Exception e) {
+        Throwable cause = e.getCause();
+        if (cause != null && e.getCause() instanceof JsonProcessingException) {
+            return Optional.of(cause.getClass().getSimpleName());
+        } else {
+            return Optional.empty();
+        }
+    }
+
+    public UserIdentitiesResult getIdentities(Collection<String> subs) {
+        Set<String> distinctSubs = new LinkedHashSet<>(subs);
+        UserIdentitiesResult userIdentitiesResult = lookupIdentities(distinctSubs);
+        Map<String, UserIdentity> data = userIdentitiesResult.getData();
+        recordBatch(distinctSubs.size(), data != null ? data.size() : 0, userIdentitiesResult.getErrors());
+        return userIdentitiesResult;
+    }
+
+    // The metrics of a batch lookup, also when only part of its subs were looked up
+    void recordBatch(int subsCount, int dataCount, Map<String, UserIdentityError> errors) {
+        batchSizeSummary.record(subsCount);
+        batchDataSummary.record(dataCount);
+        batchErrorsSummary.record(errors != null ? errors.size() : 0);
+        if (errors != null) {
+            errors.values().forEach(error -> countError("getIdentities", error.getCode()));
+        }
+    }
+
+    // Same as getIdentities without the metrics
+    UserIdentitiesResult lookupIdentities(Set<String> distinctSubs) {
+        Map<String, UserIdentity> data = new HashMap<>();
+        Map<String, UserIdentityError> errors = new HashMap<>();
+
+        List<String> missingSubs = new ArrayList<>();
+        for (String sub : distinctSubs) {
+            UserIdentity cached = userIdentitiesCache.get(sub, UserIdentity.class);
+            if (cached == null) {
+                cached = getPendingIdentity(sub).orElse(null);
+            }
+            boolean replicated = cached == null && userIdentityReplica.covers(sub);
+            if (replicated) {
+                cached = userIdentityReplica.get(sub).orElse(null);
+            }
+            if (cached != null) {
+                data.put(sub, cached);
+            } else if (!replicated && userIdentityKnownSubs.mightBeKnown(sub)) {
+                missingSubs.add(sub);
+            } else {
+                errors.put(sub, new UserIdentityError(sub, "INVALID_USER_ID"));
+            }
+        }
+
+        // the subs being loaded by concurrent lookups are waited for after loading the others
+        try (UserIdentityLookupCoalescer.Claim claim = userIdentityLookupCoalescer.claim(missingSubs)) {
+            try {
+                loadIdentities(List.copyOf(claim.getClaimedSubs()), claim, data, errors);
+            } catch (RuntimeException e) {
+                claim.getClaimedSubs().forEach(sub -> claim.fail(sub, e));
+                throw e;
+            }
+            for (String sub : claim.getLoadingSubs()) {
+                try {
+                    claim.join(sub).ifPresentOrElse(userIdentity -> data.put(sub, userIdentity),
+                        () -> errors.put(sub, new UserIdentityError(sub, "INVALID_USER_ID")));
+                } catch (UserIdentityException e) {
+                    errors.put(sub, new UserIdentityError(sub, getUserSpecificErrorCode(e).orElseThrow(() -> e)));
+                }
+            }
+        }
+
+        UserIdentitiesResult userIdentitiesResult = new UserIdentitiesResult();
+        if (data.size() > 0) {
+            userIdentitiesResult.setData(data);
+        }
+        if (errors.size() > 0) {
+            userIdentitiesResult.setErrors(errors);
+        }
+        return userIdentitiesResult;
+    }
+
+    // Loads the claimed subs from the database, in chunks
+    private void loadIdentities(List<String> subs, UserIdentityLookupCoalescer.Claim claim,
+                                Map<String, UserIdentity> data, Map<String, UserIdentityError> errors) {
+        for (int i = 0; i < subs.size(); i += SUBS_CHUNK_SIZE) {
+            List<String> chunk = subs.subList(i, Math.min(i + SUBS_CHUNK_SIZE, subs.size()));
+            Map<String, UserIdentityNames> namesBySub = findNamesBySubInTimer.record(() -> userIdentityRepository.findNamesBySubIn(chunk)).stream()
+                    .collect(Collectors.toMap(UserIdentityNames::getSub, Function.identity()));
+            // the stored names are enough unless they were derived with outdated heuristics
+            List<String> outdatedSubs = new ArrayList<>();
+            for (UserIdentityNames userIdentityNames : namesBySub.values()) {
+                userIdentityDtoService.toDto(userIdentityNames).ifPresentOrElse(userIdentity -> {
+                    userIdentitiesCache.put(userIdentity.getSub(), userIdentity);
+                    data.put(userIdentity.getSub(), userIdentity);
+                    claim.complete(userIdentity.getSub(), Optional.of(userIdentity));
+                }, () -> outdatedSubs.add(userIdentityNames.getSub()));
+            }
+            Map<String, UserIdentityEntity> outdatedEntities = outdatedSubs.isEmpty() ? Map.of()
+                    : findAllBySubInTimer.record(() -> userIdentityRepository.findAllBySubIn(outdatedSubs)).stream()
+                            .collect(Collectors.toMap(UserIdentityEntity::getSub, Function.identity()));
+
+            for (String sub : chunk) {
+                if (data.containsKey(sub)) {
+                    continue;
+                }
+                UserIdentityEntity userIdentityEntity = outdatedEntities.get(sub);
+                if (userIdentityEntity == null) {
+                    // Error objects in the response for exceptions related to this nni only
+                    // and continue with the other requested nnis.
+                    // TODO for this impl this may be a nonexisting user, or a user that has not yet
+                    // stored its idtoken
+                    errors.put(sub, new UserIdentityError(sub, "INVALID_USER_ID"));
+                    claim.complete(sub, Optional.empty());
+                    continue;
+                }
+                try {
+                    UserIdentity userIdentity = userIdentityDtoService.toDto(userIdentityEntity);
+                    userIdentitiesCache.put(sub, userIdentity);
+                    data.put(sub, userIdentity);
+                    claim.complete(sub, Optional.of(userIdentity));
+                } catch (RuntimeException e) {
+                    Optional<String> errorCode = getUserSpecificErrorCode(e);
+                    if (errorCode.isPresent()) {
+                        // if we want we can standardize error codes instead of use the classname
+                        errors.put(sub, new UserIdentityError(sub, errorCode.get()));
+                        claim.fail(sub, e);
+                    } else {
+                        // abort and use spring boot default exception handling for all other
+                        // exceptions since they will probably occur again
+                        // for the subsequent nnis.
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    // Not transactional, the upsert is a single statement
+    public SavedUserIdentity save(String sub, String idtoken) {
         UserIdentityEntity userIdentityEntity = new UserIdentityEntity(sub, idtoken);
         // call toDto first to ensure that we have valid json, otherwise it throws and we don't save
-        UserIdentity userIdentity = userIdentityDtoService.toDto(userIdentityEntity);
-        userIdentityRepository.findBySub(sub)
-                .ifPresent(savedEntity -> userIdentityEntity.setId(savedEntity.getId()));
-        userIdentityRepository.save(userIdentityEntity); // merge or persist
-        return userIdentity;
+        UserIdentity userIdentity;
+        try {
+            userIdentity = saveValidationTimer.record(() -> userIdentityDtoService.deriveNames(userIdentityEntity));
+        } catch (UserIdentityException e) {
+            getUserSpecificErrorCode(e).ifPresent(code -> countError("save", code));
+            throw e;
+        }
+        boolean buffered = saveWriteTimer.record(() -> {
+            if (userIdentityWriteBehindBuffer.add(userIdentityEntity)) {
+                return true; // published by the buffer after the write, the other nodes would read the previous row
+            }
+            // single statement, the row is left untouched (and keeps its previous idtoken)
+            // when the claims used for the names didn't change, which is the case for most logins
+            if (userIdentityRepository.upsert(userIdentityEntity) > 0) {
+                userIdentityInvalidationBus.publish(List.of(sub));
+            }
+            return false;
+        });
+        userIdentityKnownSubs.add(sub);
+        userIdentitySearch.put(userIdentity);
+        userIdentityReplica.put(userIdentity, userIdentityEntity.getContentHash());
+        userIdentityLookupCoalescer.forget(List.of(sub));
+        userIdentitiesCache.put(sub, userIdentity);
+        String eTag = toETag(userIdentityEntity.getContentHash());
+        userIdentityETagsCache.put(sub, eTag);
+        return new SavedUserIdentity(userIdentity, eTag, buffered);
+    }
+
+    // For the bulk imports, the entities must have their names derived and distinct subs
+    @Transactional
+    // @return the number of inserted or updated rows, the unchanged ones are left untouched
+    public int saveAll(Collection<UserIdentityEntity> userIdentityEntities) {
+        // a count unknown to the driver (SUCCESS_NO_INFO) is not counted
+        int written = Arrays.stream(userIdentityRepository.upsertAll(List.copyOf(userIdentityEntities)))
+                .filter(count -> count > 0)
+                .sum();
+        List<String> subs = userIdentityEntities.stream().map(UserIdentityEntity::getSub).toList();
+        userIdentityInvalidationBus.publish(subs);
+        // after the commit, a filter or index rebuilt in the meantime wouldn't see the rows
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                subs.forEach(userIdentityKnownSubs::add);
+                for (UserIdentityEntity userIdentityEntity : userIdentityEntities) {
+                    UserIdentity userIdentity = new UserIdentity(userIdentityEntity.getSub(),
+                            userIdentityEntity.getFirstName(), userIdentityEntity.getLastName());
+                    userIdentitySearch.put(userIdentity);
+                    userIdentityReplica.put(userIdentity, userIdentityEntity.getContentHash());
+                }
+            }
+        });
+        userIdentityLookupCoalescer.forget(subs);
+        // evict instead of put to not replace the hot entries of the caches
+        for (UserIdentityEntity userIdentityEntity : userIdentityEntities) {
+            userIdentitiesCache.evict(userIdentityEntity.getSub());
+            userIdentityETagsCache.evict(userIdentityEntity.getSub());
+        }
+        return written;
+    }
+
+    // The identities of stored rows in the same order, without the rows with an invalid idtoken.
+    // Must be called in a transaction.
+    List<UserIdentity> toDtos(List<UserIdentityNames> userIdentitiesNames) {
+        // the stored names are enough unless they were derived with outdated heuristics
+        List<String> outdatedSubs = userIdentitiesNames.stream()
+                .filter(userIdentityNames -> userIdentityDtoService.toDto(userIdentityNames).isEmpty())
+                .map(UserIdentityNames::getSub)
+                .toList();
+        Map<String, UserIdentityEntity> outdatedEntities = outdatedSubs.isEmpty() ? Map.of()
+                : userIdentityRepository.findAllBySubIn(outdatedSubs).stream()
+                        .collect(Collectors.toMap(UserIdentityEntity::getSub, Function.identity()));
+
+        List<UserIdentity> userIdentities = new ArrayList<>(userIdentitiesNames.size());
+        for (UserIdentityNames userIdentityNames : userIdentitiesNames) {
+            Optional<UserIdentity> userIdentity = userIdentityDtoService.toDto(userIdentityNames);
+            if (userIdentity.isEmpty()) {
+                try {
+                    userIdentity = Optional.of(userIdentityDtoService.toDto(outdatedEntities.get(userIdentityNames.getSub())));
+                } catch (UserIdentityException e) {
+                    // not returned, like in the other endpoints
+                    LOGGER.debug("Invalid idtoken for {}: {}", userIdentityNames.getSub(), e.getMessage());
+                }
+            }
+            userIdentity.ifPresent(userIdentities::add);
+        }
+        return userIdentities;
+    }
+
+    // The sequence values are taken when the rows are written but become visible
+    // when the transactions commit, so a change committed late with a lower value
+    // than an already returned one would be missed. The feed stops before the first
+    // change written less than changesSettleWindow ago: no change is missed as long
+    // as the transactions commit, and the read replicas replay them, within the window.
+    @Transactional(readOnly = true)
+    public UserIdentityChanges getChanges(long since, int limit) {
+        Instant settled = Instant.now().minus(changesSettleWindow);
+        List<UserIdentityNames> changed = userIdentityRepository.findNamesByChangeSeqGreaterThanOrderByChangeSeq(
+                since, Limit.of(Math.clamp(limit, 1, CHANGES_MAX_LIMIT)));
+        changed = changed.subList(0, countSettled(changed, settled));
+        long next = changed.isEmpty() ? since : changed.get(changed.size() - 1).getChangeSeq();
+        return new UserIdentityChanges(toDtos(changed), next);
+    }
+
+    // The number of changes, in change order, before the first one written after settled
+    static int countSettled(List<UserIdentityNames> changes, Instant settled) {
+        int count = 0;
+        while (count < changes.size() && !changes.get(count).getChangedAt().isAfter(settled)) {
+            count++;
+        }
+        return count;
     }
 }
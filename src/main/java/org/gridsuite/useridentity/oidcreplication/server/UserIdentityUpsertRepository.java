@@ -0,0 +1,36 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+public interface UserIdentityUpsertRepository {
+
+    /**
+     * Inserts or updates the identity of the entity sub in a single statement.
+     * An existing row is left untouched when its content hash and names version
+     * are the same as the entity ones.
+     *
+     * @return the number of inserted or updated rows, 0 if the row was unchanged
+     */
+    int upsert(UserIdentityEntity userIdentityEntity);
+
+    /**
+     * Same as {@link #upsert(UserIdentityEntity)} for all the entities, in one jdbc batch.
+     * The entities must have distinct subs.
+     */
+    int[] upsertAll(List<UserIdentityEntity> userIdentityEntities);
+
+    /**
+     * Moves the rows to the end of the change feed, for the updates not done by an upsert.
+     */
+    int[] bumpChangeSeq(List<UUID> ids);
+}
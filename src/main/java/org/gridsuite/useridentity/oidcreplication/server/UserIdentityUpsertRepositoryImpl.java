@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.sql.DatabaseMetaData;
+import java.sql.Types;
+import java.util.List;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.SqlParameterValue;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+
+/**
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+public class UserIdentityUpsertRepositoryImpl implements UserIdentityUpsertRepository {
+
+    // changed_at is the time the change_seq value is taken, clock_timestamp() and not the
+    // start of the transaction, see UserIdentityService.getChanges
+    private static final String POSTGRES_UPSERT = """
+            INSERT INTO user_identities (id, sub, idtoken, claims, first_name, last_name, names_version, content_hash, changed_at)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, clock_timestamp())
+            ON CONFLICT (sub) DO UPDATE SET
+                idtoken = EXCLUDED.idtoken,
+                claims = EXCLUDED.claims,
+                first_name = EXCLUDED.first_name,
+                last_name = EXCLUDED.last_name,
+                names_version = EXCLUDED.names_version,
+                content_hash = EXCLUDED.content_hash,
+                change_seq = nextval('user_identities_change_seq'),
+                changed_at = clock_timestamp()
+            WHERE user_identities.content_hash IS DISTINCT FROM EXCLUDED.content_hash
+                OR user_identities.names_version IS DISTINCT FROM EXCLUDED.names_version
+            """;
+
+    // Standard sql for the other databases (h2 for the tests), not safe
+    // against concurrent inserts of the same sub contrary to ON CONFLICT.
+    // The claims are cast, the untyped parameters of VALUES being taken as text.
+    private static final String MERGE_UPSERT = """
+            MERGE INTO user_identities t
+            USING (VALUES (?, ?, ?, CAST(? AS VARBINARY), ?, ?, ?, ?)) AS s (id, sub, idtoken, claims, first_name, last_name, names_version, content_hash)
+            ON t.sub = s.sub
+            WHEN MATCHED AND (t.content_hash IS DISTINCT FROM s.content_hash
+                    OR t.names_version IS DISTINCT FROM s.names_version) THEN UPDATE SET
+                idtoken = s.idtoken,
+                claims = s.claims,
+                first_name = s.first_name,
+                last_name = s.last_name,
+                names_version = s.names_version,
+                content_hash = s.content_hash,
+                change_seq = NEXT VALUE FOR user_identities_change_seq,
+                changed_at = CURRENT_TIMESTAMP
+            WHEN NOT MATCHED THEN INSERT (id, sub, idtoken, claims, first_name, last_name, names_version, content_hash, changed_at)
+                VALUES (s.id, s.sub, s.idtoken, s.claims, s.first_name, s.last_name, s.names_version, s.content_hash, CURRENT_TIMESTAMP)
+            """;
+
+    private static final String POSTGRES_BUMP_CHANGE_SEQ = "UPDATE user_identities SET change_seq = nextval('user_identities_change_seq'), changed_at = clock_timestamp() WHERE id = ?";
+
+    private static final String BUMP_CHANGE_SEQ = "UPDATE user_identities SET change_seq = NEXT VALUE FOR user_identities_change_seq, changed_at = CURRENT_TIMESTAMP WHERE id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final String upsertSql;
+    private final String bumpChangeSeqSql;
+
+    public UserIdentityUpsertRepositoryImpl(DataSource dataSource) throws MetaDataAccessException {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        String databaseProductName = JdbcUtils.extractDatabaseMetaData(dataSource, DatabaseMetaData::getDatabaseProductName);
+        boolean postgres = "PostgreSQL".equals(databaseProductName);
+        this.upsertSql = postgres ? POSTGRES_UPSERT : MERGE_UPSERT;
+        this.bumpChangeSeqSql = postgres ? POSTGRES_BUMP_CHANGE_SEQ : BUMP_CHANGE_SEQ;
+    }
+
+    @Override
+    public int upsert(UserIdentityEntity userIdentityEntity) {
+        return jdbcTemplate.update(upsertSql, upsertArgs(userIdentityEntity));
+    }
+
+    @Override
+    public int[] upsertAll(List<UserIdentityEntity> userIdentityEntities) {
+        return jdbcTemplate.batchUpdate(upsertSql, userIdentityEntities.stream().map(this::upsertArgs).toList());
+    }
+
+    @Override
+    public int[] bumpChangeSeq(List<UUID> ids) {
+        return jdbcTemplate.batchUpdate(bumpChangeSeqSql, ids.stream().map(id -> new Object[] {id}).toList());
+    }
+
+    private Object[] upsertArgs(UserIdentityEntity userIdentityEntity) {
+        // the id is used only for inserts, change_seq comes from its default value.
+        // idtoken or claims is null depending on the storage, typed to not rely on the driver guessing it
+        return new Object[] {
+            UUID.randomUUID(),
+            userIdentityEntity.getSub(),
+            new SqlParameterValue(Types.VARCHAR, userIdentityEntity.getIdtoken()),
+            new SqlParameterValue(Types.VARBINARY, userIdentityEntity.getClaims()),
+            userIdentityEntity.getFirstName(),
+            userIdentityEntity.getLastName(),
+            userIdentityEntity.getNamesVersion(),
+            userIdentityEntity.getContentHash(),
+        };
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Opt-in write-behind of the saved identities (user-identity.write-behind.enabled).
+ * The validated entities wait in memory, keyed by sub so that a newer login replaces
+ * an older pending one, and are upserted in jdbc batches when max-batch-size entities
+ * are pending or every flush-interval. Pending writes are lost if the server crashes,
+ * but as they are sent again on the next login of the user this is acceptable.
+ * A batch rejected by the database is written again one entity at a time, and the entities
+ * still rejected are dropped so that they don't block the others forever. The batches that
+ * fail for other reasons, like an unavailable database, stay pending.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Component
+public class UserIdentityWriteBehindBuffer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserIdentityWriteBehindBuffer.class);
+
+    private final boolean enabled;
+    private final int maxBatchSize;
+    private final int maxPending;
+    private final UserIdentityRepository userIdentityRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final UserIdentityInvalidationBus userIdentityInvalidationBus;
+    private final UserIdentityKnownSubs userIdentityKnownSubs;
+
+    private final Map<String, UserIdentityEntity> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final ScheduledExecutorService executor;
+
+    private final Timer flushTimer;
+    private final DistributionSummary batchSizeSummary;
+    private final Counter droppedCounter;
+
+    public UserIdentityWriteBehindBuffer(
+        @Value("${user-identity.write-behind.enabled}") boolean enabled,
+        @Value("${user-identity.write-behind.max-batch-size}") int maxBatchSize,
+        @Value("${user-identity.write-behind.max-pending}") int maxPending,
+        @Value("${user-identity.write-behind.flush-interval}") Duration flushInterval,
+        UserIdentityRepository userIdentityRepository,
+        TransactionTemplate transactionTemplate,
+        UserIdentityInvalidationBus userIdentityInvalidationBus,
+        UserIdentityKnownSubs userIdentityKnownSubs,
+        MeterRegistry meterRegistry
+    ) {
+        this.enabled = enabled;
+        this.maxBatchSize = maxBatchSize;
+        this.maxPending = maxPending;
+        this.userIdentityRepository = userIdentityRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.userIdentityInvalidationBus = userIdentityInvalidationBus;
+        this.userIdentityKnownSubs = userIdentityKnownSubs;
+
+        flushTimer = Timer.builder("useridentity.writebehind.flush")
+                .description("Time to write a batch of pending identities")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        batchSizeSummary = DistributionSummary.builder("useridentity.writebehind.batch.size")
+                .description("Number of identities written per batch")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        droppedCounter = Counter.builder("useridentity.writebehind.dropped")
+                .description("Number of pending identities dropped because they could not be written")
+                .register(meterRegistry);
+        Gauge.builder("useridentity.writebehind.queue.size", pending, Map::size)
+                .description("Number of identities waiting to be written")
+                .register(meterRegistry);
+
+        if (enabled) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "user-identity-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(this::flush, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            executor = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return false if the entity was not buffered because too many writes are
+     * already pending, the caller must write it itself
+     */
+    public boolean add(UserIdentityEntity userIdentityEntity) {
+        if (!enabled || pending.size() >= maxPending && !pending.containsKey(userIdentityEntity.getSub())) {
+            return false;
+        }
+        pending.put(userIdentityEntity.getSub(), userIdentityEntity);
+        if (pending.size() >= maxBatchSize && !executor.isShutdown() && flushRequested.compareAndSet(false, true)) {
+            executor.execute(this::flush);
+        }
+        return true;
+    }
+
+    public Optional<UserIdentityEntity> getPending(String sub) {
+        return Optional.ofNullable(pending.get(sub));
+    }
+
+    public synchronized void flush() {
+        flushRequested.set(false);
+        List<UserIdentityEntity> batch = new ArrayList<>(maxBatchSize);
+        for (UserIdentityEntity userIdentityEntity : pending.values()) {
+            batch.add(userIdentityEntity);
+            if (batch.size() == maxBatchSize) {
+                write(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    private void write(List<UserIdentityEntity> batch) {
+        try {
+            flushTimer.record(() -> upsertAll(batch));
+        } catch (DataIntegrityViolationException e) {
+            if (batch.size() > 1) {
+                LOGGER.warn("Error writing {} pending user identities, writing them one by one", batch.size(), e);
+                batch.forEach(userIdentityEntity -> write(List.of(userIdentityEntity)));
+            } else {
+                // would fail again on each flush, dropped like a crash would, sent again on the next login
+                LOGGER.error("Error writing the pending user identity {}, dropped", batch.get(0).getSub(), e);
+                droppedCounter.increment();
+                pending.remove(batch.get(0).getSub(), batch.get(0));
+            }
+            return;
+        } catch (RuntimeException e) {
+            // keep everything pending, retried on the next flush
+            LOGGER.error("Error writing {} pending user identities", batch.size(), e);
+            return;
+        }
+        batchSizeSummary.record(batch.size());
+        // again, a filter rebuilt since the save didn't see the pending entities
+        batch.forEach(userIdentityEntity -> userIdentityKnownSubs.add(userIdentityEntity.getSub()));
+        // keep the entities replaced by a newer login during the write, they are written next time
+        batch.forEach(userIdentityEntity -> pending.remove(userIdentityEntity.getSub(), userIdentityEntity));
+    }
+
+    private void upsertAll(List<UserIdentityEntity> batch) {
+        transactionTemplate.executeWithoutResult(status -> {
+            userIdentityRepository.upsertAll(batch);
+            userIdentityInvalidationBus.publish(batch.stream().map(UserIdentityEntity::getSub).toList());
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            flush();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server.dto;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserIdentitiesImportResult {
+    private long lines;
+    // the inserted or updated rows, one per sub and batch
+    private long imported;
+    // the identities already stored with the same content, left untouched
+    private long unchanged;
+    // the lines replaced by a later line of the same sub in their batch
+    private long duplicates;
+    private long failed;
+    // only the first errors are reported, see failed for the total
+    private List<UserIdentityImportError> errors;
+    private long durationMillis;
+    private double identitiesPerSecond;
+}
@@ -8,11 +8,13 @@ package org.gridsuite.useridentity.oidcreplication.server.dto;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 
 /**
  * @author Jon Schuhmacher <jon.harper at rte-france.com>
  */
 @Data
+@NoArgsConstructor
 @AllArgsConstructor
 public class UserIdentity {
     private String sub;
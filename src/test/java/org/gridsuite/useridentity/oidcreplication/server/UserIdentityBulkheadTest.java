@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class UserIdentityBulkheadTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private double gauge(String name) {
+        return meterRegistry.get(name).tag("path", "write").gauge().value();
+    }
+
+    private double rejected(String reason) {
+        return meterRegistry.get("useridentity.bulkhead.rejected").tag("reason", reason).counter().count();
+    }
+
+    @Test
+    void testBulkhead() throws Exception {
+        UserIdentityBulkhead bulkhead = new UserIdentityBulkhead("write", 1, 1, Duration.ofSeconds(10), Duration.ofSeconds(2),
+                meterRegistry);
+        assertThat(bulkhead.call(() -> gauge("useridentity.bulkhead.active"))).isEqualTo(1);
+        assertThat(gauge("useridentity.bulkhead.active")).isZero();
+
+        // a running call, a waiting one, the next ones are rejected
+        bulkhead.acquire();
+        CountDownLatch done = new CountDownLatch(1);
+        CompletableFuture<String> waiting = CompletableFuture.supplyAsync(() -> bulkhead.call(() -> {
+            done.countDown();
+            return "waited";
+        }));
+        while (gauge("useridentity.bulkhead.queue") < 1) {
+            Thread.onSpinWait();
+        }
+        assertThatThrownBy(() -> bulkhead.call(() -> "rejected"))
+                .isInstanceOfSatisfying(UserIdentityBulkhead.RejectedException.class,
+                    e -> assertThat(e.getRetryAfter()).isEqualTo(Duration.ofSeconds(2)));
+        assertThat(rejected("queue-full")).isEqualTo(1);
+        assertThat(done.getCount()).isEqualTo(1);
+
+        bulkhead.release();
+        assertThat(waiting.get(10, TimeUnit.SECONDS)).isEqualTo("waited");
+        assertThat(gauge("useridentity.bulkhead.queue")).isZero();
+        assertThat(gauge("useridentity.bulkhead.active")).isZero();
+        assertThat(meterRegistry.get("useridentity.bulkhead.wait").timer().count()).isEqualTo(3);
+    }
+
+    @Test
+    void testTimeout() throws Exception {
+        UserIdentityBulkhead bulkhead = new UserIdentityBulkhead("write", 1, 10, Duration.ofMillis(50), Duration.ofSeconds(1),
+                meterRegistry);
+        bulkhead.acquire();
+        assertThatThrownBy(() -> bulkhead.call(() -> "timeout")).isInstanceOf(UserIdentityBulkhead.RejectedException.class);
+        assertThat(rejected("timeout")).isEqualTo(1);
+        assertThat(gauge("useridentity.bulkhead.queue")).isZero();
+
+        // the permit of a failed call is released
+        bulkhead.release();
+        assertThatThrownBy(() -> bulkhead.call(() -> {
+            throw new IllegalStateException("failed");
+        })).isInstanceOf(IllegalStateException.class);
+        assertThat(bulkhead.call(() -> "released")).isEqualTo("released");
+    }
+
+    @Test
+    void testReleasable() {
+        UserIdentityBulkhead bulkhead = new UserIdentityBulkhead("write", 2, 0, Duration.ofMillis(50), Duration.ofSeconds(1),
+                meterRegistry);
+        Runnable release = bulkhead.acquireReleasable();
+        bulkhead.acquire();
+        assertThat(gauge("useridentity.bulkhead.active")).isEqualTo(2);
+
+        // released once by the several callbacks of a call
+        release.run();
+        release.run();
+        assertThat(gauge("useridentity.bulkhead.active")).isEqualTo(1);
+        bulkhead.release();
+        assertThat(gauge("useridentity.bulkhead.active")).isZero();
+    }
+}
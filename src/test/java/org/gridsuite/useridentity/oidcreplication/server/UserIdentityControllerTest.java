@@ -6,40 +6,80 @@
  */
 package org.gridsuite.useridentity.oidcreplication.server;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import javax.sql.DataSource;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentitiesImportResult;
 import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentitiesResult;
 import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentityChanges;
 import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentityError;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentityImportError;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.annotation.DirtiesContext.ClassMode;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.json.JsonCompareMode;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import io.micrometer.core.instrument.MeterRegistry;
 
-@SpringBootTest
+@SpringBootTest(properties = {
+    "user-identity.search.enabled=true", // disabled by default
+    // the streamed responses complete after it, they have their own timeouts
+    "spring.mvc.async.request-timeout=1ms",
+})
 @AutoConfigureMockMvc
 @RunWith(SpringRunner.class)
 @DirtiesContext(classMode = ClassMode.BEFORE_EACH_TEST_METHOD) // cheap way to get a new database every time
 public class UserIdentityControllerTest {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserIdentityControllerTest.class);
+
     @DynamicPropertySource
     static void makeTestDbSuffix(DynamicPropertyRegistry registry) {
         UUID uuid = UUID.randomUUID();
@@ -55,9 +95,27 @@ public class UserIdentityControllerTest {
     @Autowired
     UserIdentityRepository userIdentityRepository;
 
+    @Autowired
+    DataSource dataSource;
+
     @Autowired
     ObjectMapper mapper;
 
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    UserIdentityNamesBackfill userIdentityNamesBackfill;
+
+    @Autowired
+    UserIdentityDtoService userIdentityDtoService;
+
+    @Autowired
+    UserIdentityJsons userIdentityJsons;
+
+    @Autowired
+    UserIdentityBulkheads userIdentityBulkheads;
+
     Map<String, String> idtoken1 = Map.of("sub", "foo1", "given_name", "bar1", "family_name", "baz1");
     UserIdentity expected1 = new UserIdentity("foo1", "bar1", "baz1");
     Map<String, String> idtoken2 = Map.of("sub", "foo2", "given_name", "bar2", "family_name", "baz2");
@@ -104,7 +162,7 @@ public class UserIdentityControllerTest {
                 .andExpect(status().isOk())
                 .andExpect(content().json(mapper.writeValueAsString(expected1)));
 
-        // rewrite with same data, nothing should be written (hibernate merge not dirty)
+        // rewrite with same data, nothing should be written (the upsert leaves the row untouched)
         // check the logs to confirm..
         mockMvc.perform(put("/v1/users/identities/" + idtoken1.get("sub"))
                 .content(mapper.writeValueAsString(idtoken1)))
@@ -137,6 +195,346 @@ public class UserIdentityControllerTest {
                 .andExpect(content().json(mapper.writeValueAsString(expected1as2)));
     }
 
+    @Test
+    public void shouldUpsertOnlyChangedIdentities() throws Exception {
+        UserIdentityEntity saved = userIdentityRepository.findBySub("foo1").orElseThrow();
+        assertEquals(userIdentityDtoService.getNamesVersion(), saved.getNamesVersion().intValue());
+        assertEquals(64, saved.getContentHash().length());
+
+        // new login with the same names, the other claims are ignored
+        Map<String, Object> relogin = new HashMap<>(idtoken1);
+        relogin.put("iat", 1729238400);
+        relogin.put("nonce", "abc");
+        assertEquals(0, userIdentityRepository.upsert(newEntity("foo1", relogin)));
+        assertEquals(saved.getIdtoken(), userIdentityRepository.findBySub("foo1").orElseThrow().getIdtoken());
+
+        // changed names are written
+        assertEquals(1, userIdentityRepository.upsert(newEntity("foo1", idtoken2)));
+        UserIdentityEntity updated = userIdentityRepository.findBySub("foo1").orElseThrow();
+        assertEquals(saved.getId(), updated.getId());
+        assertEquals("bar2", updated.getFirstName());
+        assertNotEquals(saved.getContentHash(), updated.getContentHash());
+
+        // new sub is inserted
+        assertEquals(1, userIdentityRepository.upsert(newEntity("foo3", idtoken2)));
+        assertEquals("baz2", userIdentityRepository.findBySub("foo3").orElseThrow().getLastName());
+    }
+
+    private UserIdentityEntity newEntity(String sub, Map<String, ?> idtoken) throws Exception {
+        UserIdentityEntity userIdentityEntity = new UserIdentityEntity(sub, mapper.writeValueAsString(idtoken));
+        userIdentityDtoService.deriveNames(userIdentityEntity);
+        return userIdentityEntity;
+    }
+
+    @Test
+    public void shouldReturnNotModified() throws Exception {
+        String eTag = mockMvc.perform(get("/v1/users/identities/foo1"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        String batchETag = mockMvc.perform(get("/v1/users/identities?subs=foo1,notexists,errjson"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotNull(eTag);
+        assertNotNull(batchETag);
+
+        mockMvc.perform(get("/v1/users/identities/foo1").header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+        mockMvc.perform(get("/v1/users/identities?subs=foo1,notexists,errjson").header(HttpHeaders.IF_NONE_MATCH, batchETag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+        // other subs
+        mockMvc.perform(get("/v1/users/identities?subs=foo1,foo2").header(HttpHeaders.IF_NONE_MATCH, batchETag))
+                .andExpect(status().isOk());
+
+        // same names, same etags
+        Map<String, Object> relogin = new HashMap<>(idtoken1);
+        relogin.put("iat", 1729238400);
+        mockMvc.perform(put("/v1/users/identities/foo1").content(mapper.writeValueAsString(relogin)))
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/v1/users/identities/foo1").header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isNotModified());
+
+        // changed names
+        mockMvc.perform(put("/v1/users/identities/foo1").content(mapper.writeValueAsString(idtoken2)))
+                .andExpect(status().isOk());
+        mockMvc.perform(get("/v1/users/identities/foo1").header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isOk())
+                .andExpect(content().json(mapper.writeValueAsString(expected1as2)));
+        mockMvc.perform(get("/v1/users/identities?subs=foo1,notexists,errjson").header(HttpHeaders.IF_NONE_MATCH, batchETag))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    public void shouldReturnCachedNames() throws Exception {
+        // both identities were cached by their save in initDB,
+        // bypass the service, the cached entries are still served
+        userIdentityRepository.deleteAll();
+        mockMvc.perform(get("/v1/users/identities/foo1"))
+                .andExpect(status().isOk())
+                .andExpect(content().json(mapper.writeValueAsString(expected1)));
+        mockMvc.perform(get("/v1/users/identities?subs=foo1,foo2,errjson")).andExpect(status().isOk())
+                .andExpect(content().json(mapper.writeValueAsString(new UserIdentitiesResult(
+                        expectedMultipleResults.getData(),
+                        Map.of("errjson", new UserIdentityError("errjson", "INVALID_USER_ID"))))));
+
+        // save updates the cached entry
+        mockMvc.perform(put("/v1/users/identities/" + idtoken1.get("sub"))
+                    .content(mapper.writeValueAsString(idtoken2)))
+                .andExpect(status().isOk());
+        userIdentityRepository.deleteAll();
+        mockMvc.perform(get("/v1/users/identities/foo1"))
+                .andExpect(status().isOk())
+                .andExpect(content().json(mapper.writeValueAsString(expected1as2)));
+
+        // the json of the unchanged identities is served from its own cache
+        assertTrue("Should have counted cache hits", meterRegistry.get("cache.gets")
+                .tags("cache", UserIdentityService.USER_IDENTITIES_CACHE, "result", "hit")
+                .functionCounter().count() + meterRegistry.get("cache.gets")
+                .tags("cache", UserIdentityJsons.USER_IDENTITY_JSONS_CACHE, "result", "hit")
+                .functionCounter().count() >= 3);
+    }
+
+    @Test
+    public void shouldReturnStoredNames() throws Exception {
+        // stored names are used without parsing the idtoken
+        userIdentityRepository.save(new UserIdentityEntity(null, "stored", "{]", "bar3", "baz3",
+                userIdentityDtoService.getNamesVersion(), null, null, null, null));
+        // outdated names are derived again from the idtoken
+        userIdentityRepository.save(new UserIdentityEntity(null, "outdated",
+                mapper.writeValueAsString(Map.of("given_name", "bar4", "family_name", "baz4")), "old", "old",
+                userIdentityDtoService.getNamesVersion() - 1, null, null, null, null));
+
+        mockMvc.perform(get("/v1/users/identities/stored"))
+                .andExpect(status().isOk())
+                .andExpect(content().json(mapper.writeValueAsString(new UserIdentity("stored", "bar3", "baz3"))));
+        mockMvc.perform(get("/v1/users/identities?subs=stored,outdated,errjson")).andExpect(status().isOk())
+                .andExpect(content().json(mapper.writeValueAsString(new UserIdentitiesResult(
+                        Map.of("stored", new UserIdentity("stored", "bar3", "baz3"),
+                                "outdated", new UserIdentity("outdated", "bar4", "baz4")),
+                        Map.of(errorJson.getSub(), errorJson)))));
+    }
+
+    @Test
+    public void shouldBackfillNames() throws Exception {
+        userIdentityRepository.save(new UserIdentityEntity("nonames",
+                mapper.writeValueAsString(Map.of("name", "bar5 baz5"))));
+
+        userIdentityNamesBackfill.backfill();
+
+        UserIdentityEntity backfilled = userIdentityRepository.findBySub("nonames").orElseThrow();
+        assertEquals("bar5", backfilled.getFirstName());
+        assertEquals("baz5", backfilled.getLastName());
+        assertEquals(Integer.valueOf(userIdentityDtoService.getNamesVersion()), backfilled.getNamesVersion());
+        // not parsable, left as is
+        assertNull(userIdentityRepository.findBySub("errjson").orElseThrow().getNamesVersion());
+    }
+
+    @Test
+    public void shouldImportIdentities() throws Exception {
+        Map<String, String> idtoken3 = Map.of("sub", "foo3", "name", "bar3 baz3");
+        String ndjson = String.join("\n",
+                mapper.writeValueAsString(Map.of("sub", "foo3", "idtoken", idtoken3)),
+                "",
+                "{]",
+                mapper.writeValueAsString(Map.of("idtoken", idtoken3)),
+                mapper.writeValueAsString(Map.of("sub", "foo4", "idtoken", "{]")),
+                // the idtoken as a string like in the PUT body, replaces foo1
+                mapper.writeValueAsString(Map.of("sub", "foo1", "idtoken", mapper.writeValueAsString(idtoken2))),
+                mapper.writeValueAsString(Map.of("sub", "foo3", "idtoken", idtoken3)),
+                // too long for the column
+                mapper.writeValueAsString(Map.of("sub", "foo5", "idtoken", Map.of("name", "bar5 " + "baz5".repeat(100)))));
+
+        String response = mockMvc.perform(post("/v1/users/identities/import")
+                    .contentType(MediaType.APPLICATION_NDJSON)
+                    .content(ndjson))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        UserIdentitiesImportResult result = mapper.readValue(response, UserIdentitiesImportResult.class);
+        assertEquals(8, result.getLines());
+        // foo3 twice in the batch, written once
+        assertEquals(2, result.getImported());
+        assertEquals(0, result.getUnchanged());
+        assertEquals(1, result.getDuplicates());
+        assertEquals(4, result.getFailed());
+        assertEquals(List.of(new UserIdentityImportError(3, null, "INVALID_LINE"),
+                        new UserIdentityImportError(4, null, "INVALID_LINE"),
+                        new UserIdentityImportError(5, "foo4", "JsonParseException"),
+                        new UserIdentityImportError(8, "foo5", "VALUE_TOO_LONG")),
+                result.getErrors());
+
+        mockMvc.perform(get("/v1/users/identities/foo1"))
+                .andExpect(status().isOk())
+                .andExpect(content().json(mapper.writeValueAsString(expected1as2)));
+        mockMvc.perform(get("/v1/users/identities/foo3"))
+                .andExpect(status().isOk())
+                .andExpect(content().json(mapper.writeValueAsString(new UserIdentity("foo3", "bar3", "baz3"))));
+        assertTrue(userIdentityRepository.findBySub("foo4").isEmpty());
+        assertTrue(userIdentityRepository.findBySub("foo5").isEmpty());
+
+        // the same identities again, the rows are left untouched
+        response = mockMvc.perform(post("/v1/users/identities/import")
+                    .contentType(MediaType.APPLICATION_NDJSON)
+                    .content(ndjson))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        result = mapper.readValue(response, UserIdentitiesImportResult.class);
+        assertEquals(0, result.getImported());
+        assertEquals(2, result.getUnchanged());
+        assertEquals(4, result.getFailed());
+    }
+
+    @Test
+    public void shouldExportIdentities() throws Exception {
+        List<UserIdentityEntity> entities = new ArrayList<>();
+        for (int i = 0; i < UserIdentityExporter.CHUNK_SIZE + 10; i++) {
+            entities.add(newEntity(String.format("bulk%04d", i), Map.of("name", "first" + i + " last" + i)));
+        }
+        userIdentityRepository.upsertAll(entities);
+        // outdated names, derived again from the idtoken
+        UserIdentityEntity outdated = userIdentityRepository.findBySub("bulk0003").orElseThrow();
+        outdated.setNamesVersion(null);
+        userIdentityRepository.save(outdated);
+
+        List<UserIdentity> exported = export("");
+        // errjson is not exported
+        assertEquals(entities.size() + 2, exported.size());
+        assertEquals(new UserIdentity("bulk0000", "first0", "last0"), exported.get(0));
+        assertEquals(new UserIdentity("bulk0003", "first3", "last3"), exported.get(3));
+        assertEquals(List.of(expected1, expected2), exported.subList(exported.size() - 2, exported.size()));
+
+        // resume after the last received identity
+        assertEquals(exported.subList(entities.size() - 1, exported.size()), export(String.format("bulk%04d", entities.size() - 2)));
+        assertEquals(List.of(), export("foo2"));
+    }
+
+    @Test
+    public void shouldGetTheSubsNamedLikeTheOtherEndpoints() throws Exception {
+        for (String sub : List.of("export", "changes", "search")) {
+            mockMvc.perform(put("/v1/users/identities/" + sub).content(mapper.writeValueAsString(idtoken1)))
+                    .andExpect(status().isOk());
+            mockMvc.perform(get("/v1/users/identities/" + sub))
+                    .andExpect(status().isOk())
+                    .andExpect(content().json(mapper.writeValueAsString(new UserIdentity(sub, "bar1", "baz1"))));
+        }
+    }
+
+    private List<UserIdentity> export(String after) throws Exception {
+        MvcResult mvcResult = mockMvc.perform(get("/v1/users/identities-export").param("after", after))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        // not cut off by the default async timeout, see user-identity.streams.export-timeout
+        assertEquals(-1, mvcResult.getRequest().getAsyncContext().getTimeout());
+        String ndjson = mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        List<UserIdentity> userIdentities = new ArrayList<>();
+        for (String line : ndjson.split("\n")) {
+            if (!line.isEmpty()) {
+                userIdentities.add(mapper.readValue(line, UserIdentity.class));
+            }
+        }
+        return userIdentities;
+    }
+
+    @Test
+    public void shouldReturnChanges() throws Exception {
+        // errjson is not returned but moves the cursor
+        UserIdentityChanges changes = getChanges(0, 500);
+        assertEquals(List.of(expected1, expected2), changes.getData());
+        long next = changes.getNext();
+        assertEquals(userIdentityRepository.findBySub("errjson").orElseThrow().getChangeSeq().longValue(), next);
+
+        // same claims, the row is untouched
+        mockMvc.perform(put("/v1/users/identities/foo1").content(mapper.writeValueAsString(idtoken1)))
+                .andExpect(status().isOk());
+        assertEquals(new UserIdentityChanges(List.of(), next), getChanges(next, 500));
+
+        mockMvc.perform(put("/v1/users/identities/foo1").content(mapper.writeValueAsString(idtoken2)))
+                .andExpect(status().isOk());
+        changes = getChanges(next, 500);
+        assertEquals(List.of(expected1as2), changes.getData());
+        assertTrue(changes.getNext() > next);
+
+        // foo1 moved to the end of the feed
+        changes = getChanges(0, 1);
+        assertEquals(List.of(expected2), changes.getData());
+        assertEquals(List.of(expected1as2), getChanges(changes.getNext(), 500).getData());
+
+        // the feed stops before a change not settled yet, the next ones are returned after it
+        new JdbcTemplate(dataSource).update("UPDATE user_identities SET changed_at = ? WHERE sub = ?",
+                Timestamp.from(Instant.now().plus(Duration.ofHours(1))), "foo2");
+        assertEquals(new UserIdentityChanges(List.of(), 0), getChanges(0, 500));
+    }
+
+    private UserIdentityChanges getChanges(long since, int limit) throws Exception {
+        String response = mockMvc.perform(get("/v1/users/identities-changes")
+                    .param("since", String.valueOf(since))
+                    .param("limit", String.valueOf(limit)))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        return mapper.readValue(response, UserIdentityChanges.class);
+    }
+
+    @Test
+    public void shouldSearchIdentities() throws Exception {
+        mockMvc.perform(put("/v1/users/identities/foo3")
+                    .content(mapper.writeValueAsString(Map.of("name", "Hélène Dupont-Aignan"))))
+                .andExpect(status().isOk());
+        UserIdentity expected3 = new UserIdentity("foo3", "Hélène", "Dupont-Aignan");
+
+        assertEquals(List.of(expected1, expected2), search("BAR", 20));
+        assertEquals(List.of(expected2), search("bar2", 20));
+        assertEquals(List.of(expected1), search("bar", 1));
+        // accents, words of the names and all the words of the query
+        assertEquals(List.of(expected3), search("helene", 20));
+        assertEquals(List.of(expected3), search("aign", 20));
+        assertEquals(List.of(expected3), search("dup hél", 20));
+        assertEquals(List.of(), search("dup bar", 20));
+        assertEquals(List.of(), search(" - ", 20));
+
+        // the previous names are removed
+        mockMvc.perform(put("/v1/users/identities/foo1").content(mapper.writeValueAsString(idtoken2)))
+                .andExpect(status().isOk());
+        assertEquals(List.of(expected2, expected1as2), search("bar2", 20));
+        assertEquals(List.of(), search("bar1", 20));
+
+        assertTrue(meterRegistry.get("useridentity.search").timer().count() >= 10);
+        assertTrue(meterRegistry.get("useridentity.search.index.size").gauge().value() > 0);
+    }
+
+    private List<UserIdentity> search(String query, int limit) throws Exception {
+        String response = mockMvc.perform(get("/v1/users/identities-search")
+                    .param("q", query)
+                    .param("limit", String.valueOf(limit)))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        return mapper.readValue(response, new TypeReference<>() { });
+    }
+
+    @Test
+    public void shouldRecordMetrics() throws Exception {
+        mockMvc.perform(get("/v1/users/identities?subs=foo1,notexists,errjson,errjson")).andExpect(status().isOk());
+        assertThrows(Exception.class, () -> mockMvc.perform(put("/v1/users/identities/foo3").content("{]")));
+
+        assertEquals(1, meterRegistry.get("useridentity.batch.size").summary().count());
+        assertEquals(3, meterRegistry.get("useridentity.batch.size").summary().totalAmount(), 0);
+        assertEquals(2, meterRegistry.get("useridentity.batch.result").tag("result", "errors").summary().totalAmount(), 0);
+        assertEquals(1, meterRegistry.get("useridentity.errors").tag("operation", "getIdentities")
+                .tag("code", "INVALID_USER_ID").counter().count(), 0);
+        assertEquals(1, meterRegistry.get("useridentity.errors").tag("operation", "getIdentities")
+                .tag("code", "JsonParseException").counter().count(), 0);
+        assertEquals(1, meterRegistry.get("useridentity.errors").tag("operation", "save")
+                .tag("code", "JsonParseException").counter().count(), 0);
+        // errjson has no stored names
+        assertEquals(1, meterRegistry.get("useridentity.lookup").tag("query", "findAllBySubIn").timer().count());
+        // the 2 saves of initDB and the invalid one
+        assertEquals(3, meterRegistry.get("useridentity.save").tag("phase", "validation").timer().count());
+        assertEquals(2, meterRegistry.get("useridentity.save").tag("phase", "write").timer().count());
+        assertEquals(3, meterRegistry.get("useridentity.idtoken.size").summary().count());
+        assertTrue(meterRegistry.get("useridentity.idtoken.parse").timer().count() >= 4);
+    }
+
     @Test
     public void shouldReturn404() throws Exception {
         mockMvc.perform(get("/v1/users/identities/notexists")).andExpect(status().isNotFound())
@@ -164,6 +562,213 @@ public class UserIdentityControllerTest {
                 .andExpect(content().json(mapper.writeValueAsString(expectedPartialResults)));
     }
 
+    @Test
+    public void shouldReturnPartialNamesOverSeveralChunks() throws Exception {
+        List<String> subs = new ArrayList<>();
+        Map<String, UserIdentityError> errors = new HashMap<>();
+        for (int i = 0; i < UserIdentityService.SUBS_CHUNK_SIZE + 10; i++) {
+            String sub = "notexists" + i;
+            subs.add(sub);
+            errors.put(sub, new UserIdentityError(sub, "INVALID_USER_ID"));
+        }
+        subs.add("foo2");
+        subs.add("foo1");
+        subs.add("foo1");
+        UserIdentitiesResult expected = new UserIdentitiesResult(
+                Map.of(expected1.getSub(), expected1,
+                        expected2.getSub(), expected2),
+                errors);
+
+        mockMvc.perform(get("/v1/users/identities").param("subs", subs.toArray(String[]::new)))
+                .andExpect(status().isOk())
+                .andExpect(content().json(mapper.writeValueAsString(expected), JsonCompareMode.STRICT));
+
+        // same result streamed for the subs in the body
+        MvcResult mvcResult = mockMvc.perform(post("/v1/users/identities")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(mapper.writeValueAsString(subs)))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andExpect(content().json(mapper.writeValueAsString(expected), JsonCompareMode.STRICT));
+    }
+
+    @Test
+    public void shouldNegotiateBinaryFormats() throws Exception {
+        Map<MediaType, ObjectMapper> binaryMappers = Map.of(
+                MediaType.APPLICATION_CBOR, new ObjectMapper(new CBORFactory()),
+                UserIdentityController.APPLICATION_SMILE, new ObjectMapper(new SmileFactory()));
+        for (Map.Entry<MediaType, ObjectMapper> binaryMapper : binaryMappers.entrySet()) {
+            MediaType mediaType = binaryMapper.getKey();
+            ObjectMapper binaryObjectMapper = binaryMapper.getValue();
+            byte[] single = mockMvc.perform(get("/v1/users/identities/foo1").accept(mediaType))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentType(mediaType))
+                    .andReturn().getResponse().getContentAsByteArray();
+            assertEquals(expected1, binaryObjectMapper.readValue(single, UserIdentity.class));
+
+            byte[] batch = mockMvc.perform(get("/v1/users/identities").param("subs", "foo1", "foo2").accept(mediaType))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentType(mediaType))
+                    .andReturn().getResponse().getContentAsByteArray();
+            assertEquals(expectedMultipleResults, binaryObjectMapper.readValue(batch, UserIdentitiesResult.class));
+
+            // the bulk lookups and the saves in the binary format too
+            MvcResult mvcResult = mockMvc.perform(post("/v1/users/identities")
+                        .contentType(mediaType)
+                        .accept(mediaType)
+                        .content(binaryObjectMapper.writeValueAsBytes(List.of("foo1", "notexists"))))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+            byte[] streamed = mockMvc.perform(asyncDispatch(mvcResult))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentType(mediaType))
+                    .andReturn().getResponse().getContentAsByteArray();
+            assertEquals(expectedPartialResults, binaryObjectMapper.readValue(streamed, UserIdentitiesResult.class));
+
+            byte[] saved = mockMvc.perform(put("/v1/users/identities/foo3")
+                        .contentType(mediaType)
+                        .accept(mediaType)
+                        .content(binaryObjectMapper.writeValueAsBytes(Map.of("given_name", "bar3", "family_name", "baz3"))))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentType(mediaType))
+                    .andReturn().getResponse().getContentAsByteArray();
+            assertEquals(new UserIdentity("foo3", "bar3", "baz3"), binaryObjectMapper.readValue(saved, UserIdentity.class));
+        }
+
+        // json for the browsers and when preferred
+        for (String accept : List.of("text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",
+                "application/json, application/cbor;q=0.5", "application/*")) {
+            mockMvc.perform(get("/v1/users/identities/foo1").header(HttpHeaders.ACCEPT, accept))
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(content().json(mapper.writeValueAsString(expected1), JsonCompareMode.STRICT));
+        }
+        mockMvc.perform(get("/v1/users/identities/foo1").header(HttpHeaders.ACCEPT, "application/json;q=0.5, application/cbor"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_CBOR));
+    }
+
+    @Test
+    public void shouldEncodeSmallerBinaryBatches() throws Exception {
+        Map<String, UserIdentity> data = new HashMap<>();
+        for (int i = 0; i < UserIdentityService.SUBS_CHUNK_SIZE; i++) {
+            String sub = UUID.nameUUIDFromBytes(("sub" + i).getBytes(StandardCharsets.UTF_8)).toString();
+            data.put(sub, new UserIdentity(sub, "first" + i % 50, "last" + i));
+        }
+        UserIdentitiesResult result = new UserIdentitiesResult(data, Map.of(errorNotExists.getSub(), errorNotExists));
+        int jsonSize = mapper.writeValueAsBytes(result).length;
+        int cborSize = new ObjectMapper(new CBORFactory()).writeValueAsBytes(result).length;
+        // the smile back references shorten the repeated keys and names
+        int smileSize = new ObjectMapper(new SmileFactory()).writeValueAsBytes(result).length;
+        LOGGER.info("Batch of {} identities: json {} bytes, cbor {} bytes, smile {} bytes",
+                data.size(), jsonSize, cborSize, smileSize);
+        assertTrue(cborSize < jsonSize);
+        assertTrue(smileSize < cborSize);
+    }
+
+    @Test
+    public void shouldRejectExcessSaves() throws Exception {
+        // all the writes are running, see user-identity.bulkheads.write.max-concurrent
+        int maxConcurrent = 5;
+        for (int i = 0; i < maxConcurrent; i++) {
+            userIdentityBulkheads.write().acquire();
+        }
+        try {
+            mockMvc.perform(put("/v1/users/identities/foo1")
+                        .content(mapper.writeValueAsString(idtoken1)))
+                    .andExpect(status().isTooManyRequests())
+                    .andExpect(header().string(HttpHeaders.RETRY_AFTER, "1"));
+            assertEquals(1, meterRegistry.get("useridentity.bulkhead.rejected").tag("path", "write").tag("reason", "timeout")
+                    .counter().count(), 0);
+
+            // the reads don't wait for the writes
+            mockMvc.perform(get("/v1/users/identities/foo1"))
+                    .andExpect(status().isOk())
+                    .andExpect(content().json(mapper.writeValueAsString(expected1)));
+        } finally {
+            for (int i = 0; i < maxConcurrent; i++) {
+                userIdentityBulkheads.write().release();
+            }
+        }
+        mockMvc.perform(put("/v1/users/identities/foo1")
+                    .content(mapper.writeValueAsString(idtoken1)))
+                .andExpect(status().isOk());
+    }
+
+    private Map<String, byte[]> toJsons(Map<String, UserIdentity> data) throws Exception {
+        Map<String, byte[]> jsons = new LinkedHashMap<>();
+        if (data != null) {
+            for (Map.Entry<String, UserIdentity> entry : data.entrySet()) {
+                jsons.put(entry.getKey(), mapper.writeValueAsBytes(entry.getValue()));
+            }
+        }
+        return jsons;
+    }
+
+    @Test
+    public void shouldWriteSerializedJsons() throws Exception {
+        // same bytes as jackson, with escaped subs
+        UserIdentity escaped = new UserIdentity("foo\"\u00e9\n", "bar\u00e9", null);
+        Map<String, UserIdentity> data = new HashMap<>(Map.of(expected1.getSub(), expected1, escaped.getSub(), escaped));
+        for (UserIdentitiesResult result : List.of(new UserIdentitiesResult(data, null), expectedPartialResults, expectedNoDataResults)) {
+            assertArrayEquals(mapper.writeValueAsBytes(result), userIdentityJsons.toJson(toJsons(result.getData()), result.getErrors()));
+        }
+
+        // the json cached with the etag of the identity is written as is
+        String eTag = mockMvc.perform(get("/v1/users/identities/foo1"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        UserIdentity cached = new UserIdentity("foo1", "cached", "cached");
+        userIdentityJsons.put(cached, eTag);
+        mockMvc.perform(get("/v1/users/identities/foo1"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+                .andExpect(content().json(mapper.writeValueAsString(cached), JsonCompareMode.STRICT));
+        mockMvc.perform(get("/v1/users/identities").param("subs", "foo1", "foo2", "notexists"))
+                .andExpect(status().isOk())
+                .andExpect(content().json(mapper.writeValueAsString(new UserIdentitiesResult(
+                        Map.of("foo1", cached, "foo2", expected2),
+                        Map.of("notexists", new UserIdentityError("notexists", "INVALID_USER_ID")))), JsonCompareMode.STRICT));
+
+        // a json cached with another etag is not used
+        userIdentityJsons.put(new UserIdentity("foo1", "outdated", "outdated"), "\"outdated\"");
+        mockMvc.perform(get("/v1/users/identities/foo1"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+                .andExpect(content().json(mapper.writeValueAsString(expected1), JsonCompareMode.STRICT));
+        mockMvc.perform(get("/v1/users/identities").param("subs", "foo1", "foo2"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+                .andExpect(content().json(mapper.writeValueAsString(expectedMultipleResults), JsonCompareMode.STRICT));
+    }
+
+    @Test
+    public void shouldStreamNamesAndErrors() throws Exception {
+        for (UserIdentitiesResult expected : List.of(expectedMultipleResults, expectedPartialJsonErrResults, expectedNoDataResults)) {
+            List<String> subs = new ArrayList<>();
+            if (expected.getData() != null) {
+                subs.addAll(expected.getData().keySet());
+            }
+            if (expected.getErrors() != null) {
+                subs.addAll(expected.getErrors().keySet());
+            }
+            MvcResult mvcResult = mockMvc.perform(post("/v1/users/identities")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(subs)))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+            // see user-identity.streams.lookup-timeout
+            assertEquals(Duration.ofMinutes(5).toMillis(), mvcResult.getRequest().getAsyncContext().getTimeout());
+            mockMvc.perform(asyncDispatch(mvcResult))
+                    .andExpect(status().isOk())
+                    .andExpect(content().json(mapper.writeValueAsString(expected), JsonCompareMode.STRICT));
+        }
+        // the read permits are released once, by the end of the stream and the completion of the request
+        assertEquals(0, meterRegistry.get("useridentity.bulkhead.active").tag("path", "read").gauge().value(), 0);
+    }
+
     @Test
     public void shouldReturn500MultipleChecked() throws Exception {
         mockMvc.perform(get("/v1/users/identities?subs=foo1,errjson")).andExpect(status().isOk())
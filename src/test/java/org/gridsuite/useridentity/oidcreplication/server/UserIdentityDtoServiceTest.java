@@ -1,21 +1,29 @@
 package org.gridsuite.useridentity.oidcreplication.server;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
 
 import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
 @SpringBootTest(webEnvironment = WebEnvironment.NONE, properties = {
     "spring.autoconfigure.exclude=" +
           "org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration," +
@@ -26,6 +34,24 @@ class UserIdentityDtoServiceTest {
     @MockitoBean
     UserIdentityRepository excluded;
 
+    @MockitoBean
+    UserIdentityNamesBackfill excludedBackfill;
+
+    @MockitoBean
+    UserIdentityWriteBehindBuffer excludedWriteBehindBuffer;
+
+    @MockitoBean
+    UserIdentityExporter excludedExporter;
+
+    @MockitoBean
+    UserIdentityKnownSubs excludedKnownSubs;
+
+    @MockitoBean
+    UserIdentitySearch excludedSearch;
+
+    @MockitoBean
+    UserIdentityReplica excludedReplica;
+
     @Autowired
     UserIdentityDtoService userIdentityDtoService;
 
@@ -108,8 +134,86 @@ class UserIdentityDtoServiceTest {
                                 "sub", "sub1"))),
                         new UserIdentity("sub1", "s", "sub1")),
                 Arguments.of(new UserIdentityEntity("sub1", ""),
+                        new UserIdentity("sub1", "s", "sub1")),
+                Arguments.of(new UserIdentityEntity("sub1",
+                        mapper.writeValueAsString(Map.of(
+                                "sub", "sub1",
+                                "name", " foo  bar baz  "))),
+                        new UserIdentity("sub1", "", "baz")),
+                Arguments.of(new UserIdentityEntity("sub1",
+                        mapper.writeValueAsString(Map.of(
+                                "sub", "sub1",
+                                "name", "foo ",
+                                "middle_name", "bar"))),
+                        new UserIdentity("sub1", "foo ", "bar")),
+                Arguments.of(new UserIdentityEntity("sub1",
+                        mapper.writeValueAsString(Map.of(
+                                "sub", "sub1",
+                                "address", Map.of("name", "no", "given_name", "no"),
+                                "groups", List.of(Map.of("family_name", "no"), "nope"),
+                                "nickname", 42,
+                                "name", "foo bar"))),
+                        new UserIdentity("sub1", "foo", "bar")),
+                Arguments.of(new UserIdentityEntity("sub1", "[\"foo bar\"]"),
                         new UserIdentity("sub1", "s", "sub1"))
         );
     }
 
+    @ParameterizedTest
+    @ValueSource(strings = {"{]", "[", "{\"name\": \"foo bar\"", "{\"groups\": [{]}"})
+    void testInvalidJson(String idtoken) {
+        UserIdentityEntity userIdentityEntity = new UserIdentityEntity("sub1", idtoken);
+        assertThatThrownBy(() -> userIdentityDtoService.toDto(userIdentityEntity))
+                .isInstanceOf(UserIdentityException.class)
+                .hasCauseInstanceOf(JsonProcessingException.class);
+    }
+
+    @Autowired
+    UserIdentityNamesRules namesRules;
+
+    private UserIdentityDtoService newDtoService(List<UserIdentityNamesRules.IssuerRules> issuers) {
+        return new UserIdentityDtoService(mapper, new SimpleMeterRegistry(),
+                new UserIdentityNamesRules(namesRules.defaults(), issuers),
+                UserIdentityDtoService.IdtokenStorage.RAW, false, false);
+    }
+
+    @Test
+    void testIssuerRules() throws Exception {
+        UserIdentityDtoService issuersDtoService = newDtoService(List.of(
+                new UserIdentityNamesRules.IssuerRules("https://azure", List.of("name:first-word", "preferred_username"),
+                        List.of("name:last-word", "sub")),
+                new UserIdentityNamesRules.IssuerRules("https://internal", List.of("nickname:not-sub"), List.of("preferred_username:initial"))));
+        Map<String, String> idtoken = Map.of("sub", "sub1", "name", "foo bar", "given_name", "given",
+                "family_name", "family", "nickname", "sub1", "preferred_username", "pref");
+
+        assertThat(issuersDtoService.toDto(new UserIdentityEntity("sub1", mapper.writeValueAsString(idtoken))))
+                .isEqualTo(new UserIdentity("sub1", "given", "family"));
+        assertThat(issuersDtoService.toDto(new UserIdentityEntity("sub1", mapper.writeValueAsString(withIss(idtoken, "https://azure")))))
+                .isEqualTo(new UserIdentity("sub1", "foo", "bar"));
+        // no rule applies for the first name, fallback to the sub
+        assertThat(issuersDtoService.toDto(new UserIdentityEntity("sub1", mapper.writeValueAsString(withIss(idtoken, "https://internal")))))
+                .isEqualTo(new UserIdentity("sub1", "sub1", "p"));
+        assertThat(issuersDtoService.toDto(new UserIdentityEntity("sub1", mapper.writeValueAsString(withIss(idtoken, "https://unknown")))))
+                .isEqualTo(new UserIdentity("sub1", "given", "family"));
+
+        // the names are derived again when the rules change
+        assertThat(issuersDtoService.getNamesVersion()).isNotEqualTo(userIdentityDtoService.getNamesVersion());
+        assertThat(newDtoService(List.of()).getNamesVersion()).isEqualTo(userIdentityDtoService.getNamesVersion());
+    }
+
+    private static Map<String, String> withIss(Map<String, String> idtoken, String iss) {
+        Map<String, String> withIss = new HashMap<>(idtoken);
+        withIss.put("iss", iss);
+        return withIss;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"email", "name:second-word", ""})
+    void testInvalidRules(String rule) {
+        List<UserIdentityNamesRules.IssuerRules> issuers = List.of(
+                new UserIdentityNamesRules.IssuerRules("https://azure", List.of("name", rule), List.of("sub")));
+        assertThatThrownBy(() -> newDtoService(issuers))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("https://azure");
+    }
 }
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Limit;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+@SpringBootTest(properties = {
+    "user-identity.idtoken-storage.mode=claims",
+})
+class UserIdentityIdtokenStorageTest {
+
+    @DynamicPropertySource
+    static void makeTestDbSuffix(DynamicPropertyRegistry registry) {
+        UUID uuid = UUID.randomUUID();
+        registry.add("testDbSuffix", () -> uuid);
+    }
+
+    @Autowired
+    UserIdentityService userIdentityService;
+
+    @Autowired
+    UserIdentityRepository userIdentityRepository;
+
+    @Autowired
+    UserIdentityNamesBackfill userIdentityNamesBackfill;
+
+    @Autowired
+    UserIdentityDtoService userIdentityDtoService;
+
+    @Autowired
+    UserIdentityNamesRules namesRules;
+
+    private static ObjectMapper mapper = new ObjectMapper();
+
+    private static String idtoken(String sub, String givenName, String familyName) throws Exception {
+        Map<String, Object> idtoken = new HashMap<>();
+        idtoken.put("sub", sub);
+        idtoken.put("given_name", givenName);
+        idtoken.put("family_name", familyName);
+        // the usual claims irrelevant for the names
+        idtoken.put("iss", "https://login.microsoftonline.com/9188040d-6c67-4c5b-b112-36a304b66dad/v2.0");
+        idtoken.put("aud", "6cb04018-a3f5-46a7-b995-940c78f5aef3");
+        idtoken.put("iat", 1727000000);
+        idtoken.put("exp", 1727003600);
+        idtoken.put("nonce", "123523");
+        idtoken.put("oid", "00000000-0000-0000-66f3-3332eca7ea81");
+        idtoken.put("tid", "9188040d-6c67-4c5b-b112-36a304b66dad");
+        idtoken.put("uti", "rW2Mf0QxkUC1f3mX8xNqAA");
+        idtoken.put("ver", "2.0");
+        return mapper.writeValueAsString(idtoken);
+    }
+
+    @Test
+    void testClaimsStorage() throws Exception {
+        String idtoken = idtoken("foo1", "bar1", "baz1");
+        userIdentityService.save("foo1", idtoken);
+
+        UserIdentityEntity userIdentityEntity = userIdentityRepository.findBySub("foo1").orElseThrow();
+        assertThat(userIdentityEntity.getIdtoken()).isNull();
+        assertThat(userIdentityEntity.getClaims()).hasSizeLessThan(idtoken.length() / 2);
+        assertThat(userIdentityDtoService.toDto(userIdentityEntity)).isEqualTo(new UserIdentity("foo1", "bar1", "baz1"));
+        assertThat(userIdentityService.getIdentity("foo1")).contains(new UserIdentity("foo1", "bar1", "baz1"));
+    }
+
+    @Test
+    void testConversion() throws Exception {
+        // stored before the switch to the claims storage
+        userIdentityRepository.save(new UserIdentityEntity("foo2", idtoken("foo2", "bar2", "baz2")));
+
+        userIdentityNamesBackfill.backfill();
+        UserIdentityEntity userIdentityEntity = userIdentityRepository.findBySub("foo2").orElseThrow();
+        assertThat(userIdentityEntity.getIdtoken()).isNull();
+        assertThat(userIdentityEntity.getClaims()).isNotNull();
+        assertThat(userIdentityEntity.getFirstName()).isEqualTo("bar2");
+        assertThat(userIdentityService.getIdentity("foo2")).contains(new UserIdentity("foo2", "bar2", "baz2"));
+
+        // the converted claims give the same names, so the row is not derived again
+        assertThat(userIdentityRepository.findOutdated(userIdentityDtoService.getNamesVersion(), true, false,
+                new UUID(0, 0), Limit.of(10))).isEmpty();
+    }
+
+    @Test
+    void testCompressAndKeepRaw() throws Exception {
+        UserIdentityDtoService compressingDtoService = new UserIdentityDtoService(mapper, new SimpleMeterRegistry(),
+                namesRules, UserIdentityDtoService.IdtokenStorage.CLAIMS, true, true);
+        String longName = "bar".repeat(80); // still fits the name columns
+        String idtoken = idtoken("foo3", longName, longName);
+        UserIdentityEntity userIdentityEntity = new UserIdentityEntity("foo3", idtoken);
+        compressingDtoService.deriveNames(userIdentityEntity);
+
+        assertThat(userIdentityEntity.getIdtoken()).isEqualTo(idtoken);
+        // deflated, no smile header
+        assertThat(userIdentityEntity.getClaims()[0]).isNotEqualTo((byte) ':');
+        assertThat(userIdentityEntity.getClaims()).hasSizeLessThan(longName.length());
+        assertThat(userIdentityDtoService.decodeClaims(userIdentityEntity.getClaims()))
+                .isEqualTo(userIdentityDtoService.parseClaims(idtoken));
+
+        // short claims are left as is
+        compressingDtoService.deriveNames(userIdentityEntity = new UserIdentityEntity("foo4",
+                mapper.writeValueAsString(Map.of("given_name", "bar4", "family_name", "baz4"))));
+        assertThat(userIdentityEntity.getClaims()[0]).isEqualTo((byte) ':');
+    }
+}
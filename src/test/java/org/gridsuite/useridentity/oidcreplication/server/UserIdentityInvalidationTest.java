@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Two nodes sharing the same database, as two application contexts in this jvm.
+ */
+class UserIdentityInvalidationTest {
+
+    private static ObjectMapper mapper = new ObjectMapper();
+
+    private ConfigurableApplicationContext node1;
+    private ConfigurableApplicationContext node2;
+
+    @BeforeEach
+    void startNodes() {
+        String testDbSuffix = UUID.randomUUID().toString();
+        node1 = startNode(testDbSuffix);
+        node2 = startNode(testDbSuffix);
+    }
+
+    private static ConfigurableApplicationContext startNode(String testDbSuffix) {
+        return new SpringApplicationBuilder(UserIdentityOidcReplicationApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties("testDbSuffix=" + testDbSuffix)
+                .run();
+    }
+
+    @AfterEach
+    void stopNodes() {
+        node1.close();
+        node2.close();
+    }
+
+    @Test
+    void testInvalidation() throws Exception {
+        UserIdentityService service1 = node1.getBean(UserIdentityService.class);
+        UserIdentityService service2 = node2.getBean(UserIdentityService.class);
+
+        service1.save("foo1", mapper.writeValueAsString(Map.of("given_name", "bar1", "family_name", "baz1")));
+        // cached by node2
+        assertThat(service2.getIdentity("foo1")).contains(new UserIdentity("foo1", "bar1", "baz1"));
+
+        service1.save("foo1", mapper.writeValueAsString(Map.of("given_name", "bar2", "family_name", "baz2")));
+        assertThat(service2.getIdentity("foo1")).contains(new UserIdentity("foo1", "bar2", "baz2"));
+        assertThat(service2.getIdentityETag("foo1")).isEqualTo(service1.getIdentityETag("foo1"));
+
+        MeterRegistry meterRegistry2 = node2.getBean(MeterRegistry.class);
+        assertThat(meterRegistry2.get("useridentity.invalidation.received").counter().count()).isEqualTo(2);
+        assertThat(meterRegistry2.get("useridentity.invalidation.lag").timer().count()).isEqualTo(2);
+        // not sent back to the publishing node
+        assertThat(node1.getBean(MeterRegistry.class).get("useridentity.invalidation.received").counter().count()).isZero();
+    }
+
+    @Test
+    void testMissedInvalidations() throws Exception {
+        UserIdentityService service1 = node1.getBean(UserIdentityService.class);
+        UserIdentityService service2 = node2.getBean(UserIdentityService.class);
+        service1.save("foo1", mapper.writeValueAsString(Map.of("given_name", "bar1", "family_name", "baz1")));
+        assertThat(service2.getIdentity("foo1")).contains(new UserIdentity("foo1", "bar1", "baz1"));
+
+        // lost message, as when the postgres listener reconnects
+        node1.getBean(UserIdentityRepository.class).upsert(newEntity(node1, "foo1", Map.of("given_name", "bar2")));
+        assertThat(service2.getIdentity("foo1")).contains(new UserIdentity("foo1", "bar1", "baz1"));
+        node2.getBean(UserIdentityCacheInvalidator.class).onMissedInvalidations();
+        assertThat(service2.getIdentity("foo1")).contains(new UserIdentity("foo1", "bar2", "foo1"));
+        assertThat(node2.getBean(MeterRegistry.class).get("useridentity.invalidation.missed").counter().count()).isEqualTo(1);
+    }
+
+    private static UserIdentityEntity newEntity(ConfigurableApplicationContext node, String sub, Map<String, String> idtoken) throws Exception {
+        UserIdentityEntity userIdentityEntity = new UserIdentityEntity(sub, mapper.writeValueAsString(idtoken));
+        node.getBean(UserIdentityDtoService.class).deriveNames(userIdentityEntity);
+        return userIdentityEntity;
+    }
+
+    @Test
+    void testPostgresPayloads() throws Exception {
+        List<String> subs = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            subs.add("sub" + i);
+        }
+        List<String> payloads = UserIdentityPostgresInvalidationBus.payloads("node1", 42, subs, mapper);
+        assertThat(payloads).hasSizeGreaterThan(1);
+        List<String> received = new ArrayList<>();
+        for (String payload : payloads) {
+            assertThat(payload.getBytes()).hasSizeLessThan(8000);
+            UserIdentityPostgresInvalidationBus.Message message = mapper.readValue(payload, UserIdentityPostgresInvalidationBus.Message.class);
+            assertThat(message.node()).isEqualTo("node1");
+            assertThat(message.publishedAt()).isEqualTo(42);
+            received.addAll(message.subs());
+        }
+        assertThat(received).isEqualTo(subs);
+    }
+}
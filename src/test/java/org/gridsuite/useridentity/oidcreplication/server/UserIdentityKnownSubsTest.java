@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentitiesResult;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentityError;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+@SpringBootTest(properties = {
+    "user-identity.known-subs.enabled=true",
+    "user-identity.known-subs.expected-subs=1000",
+})
+class UserIdentityKnownSubsTest {
+
+    @DynamicPropertySource
+    static void makeTestDbSuffix(DynamicPropertyRegistry registry) {
+        UUID uuid = UUID.randomUUID();
+        registry.add("testDbSuffix", () -> uuid);
+    }
+
+    @Autowired
+    UserIdentityService userIdentityService;
+
+    @Autowired
+    UserIdentityRepository userIdentityRepository;
+
+    @Autowired
+    UserIdentityKnownSubs userIdentityKnownSubs;
+
+    @Autowired
+    ObjectMapper mapper;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    private double negativeCount() {
+        return meterRegistry.get("useridentity.knownsubs.negative").counter().count();
+    }
+
+    @Test
+    void testKnownSubs() throws Exception {
+        userIdentityService.save("foo1", mapper.writeValueAsString(Map.of("given_name", "bar1", "family_name", "baz1")));
+        userIdentityKnownSubs.rebuild();
+        assertThat(meterRegistry.get("useridentity.knownsubs.count").gauge().value()).isEqualTo(1);
+        assertThat(meterRegistry.get("useridentity.knownsubs.size").gauge().value()).isPositive();
+
+        assertThat(userIdentityService.getIdentity("foo1")).contains(new UserIdentity("foo1", "bar1", "baz1"));
+        double negativeCount = negativeCount();
+        assertThat(userIdentityService.getIdentity("unknown1")).isEmpty();
+        assertThat(userIdentityService.getIdentities(List.of("foo1", "unknown2"))).isEqualTo(new UserIdentitiesResult(
+                Map.of("foo1", new UserIdentity("foo1", "bar1", "baz1")),
+                Map.of("unknown2", new UserIdentityError("unknown2", "INVALID_USER_ID"))));
+        assertThat(negativeCount()).isEqualTo(negativeCount + 2);
+
+        // saved after the build
+        userIdentityService.save("foo2", mapper.writeValueAsString(Map.of("given_name", "bar2", "family_name", "baz2")));
+        assertThat(userIdentityService.getIdentity("foo2")).contains(new UserIdentity("foo2", "bar2", "baz2"));
+
+        // written behind the back of the service, known after the next build only
+        userIdentityRepository.save(new UserIdentityEntity("foo3", mapper.writeValueAsString(Map.of("name", "bar3 baz3"))));
+        assertThat(userIdentityService.getIdentity("foo3")).isEmpty();
+        userIdentityKnownSubs.rebuild();
+        assertThat(userIdentityService.getIdentity("foo3")).contains(new UserIdentity("foo3", "bar3", "baz3"));
+    }
+
+    @Test
+    void testFalsePositiveRate() {
+        UserIdentityBloomFilter filter = UserIdentityBloomFilter.create(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("known" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            assertThat(filter.mightContain("known" + i % 10000)).isTrue();
+            if (filter.mightContain("unknown" + i)) {
+                falsePositives++;
+            }
+        }
+        assertThat(falsePositives / 100000.0).isLessThan(0.02);
+        assertThat(filter.expectedFalsePositiveRate()).isBetween(0.005, 0.02);
+        // about 1.2 bytes per sub
+        assertThat(filter.bitSize() / 8).isBetween(11000L, 13000L);
+    }
+}
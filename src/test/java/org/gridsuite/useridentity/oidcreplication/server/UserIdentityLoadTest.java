@@ -0,0 +1,325 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Load test of the REST endpoints of an instance with the embedded database of the tests,
+ * skipped unless the loadtest system property is true:
+ * <pre>
+ * mvn test -Dtest=UserIdentityLoadTest -Dloadtest=true -Dloadtest.duration=60 -Dloadtest.mix=put=80,get=10,batch=10
+ * </pre>
+ * The options are system properties, see {@link #option}, as are the overrides of the
+ * application properties, for instance -Duser-identity.known-subs.enabled=true.
+ * The requests of the warmup are not measured. The throughput and latency percentiles of
+ * each endpoint are logged and written with the options and the git commit to
+ * target/loadtest-report.json, to compare the runs of several commits.
+ *
+ * @author Jon Schuhmacher <jon.harper at rte-france.com>
+ */
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties = {
+    // the test profile logs all the sql and requests
+    "logging.level.org.hibernate.SQL=WARN",
+    "logging.level.org.hibernate.orm.jdbc.bind=WARN",
+    "logging.level.org.springframework.orm.jpa=WARN",
+    "logging.level.org.springframework.web.method.HandlerMethod=WARN",
+})
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+class UserIdentityLoadTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserIdentityLoadTest.class);
+
+    private static final int INSERT_BATCH_SIZE = 5000;
+
+    @DynamicPropertySource
+    static void makeTestDbSuffix(DynamicPropertyRegistry registry) {
+        UUID uuid = UUID.randomUUID();
+        registry.add("testDbSuffix", () -> uuid);
+    }
+
+    @LocalServerPort
+    int port;
+
+    @Autowired
+    UserIdentityRepository userIdentityRepository;
+
+    @Autowired
+    UserIdentityDtoService userIdentityDtoService;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+    // login storm of the stored subs, single lookups and batch lookups
+    private enum Endpoint {
+        PUT,
+        GET,
+        BATCH_GET,
+    }
+
+    private record Options(int durationSeconds, int warmupSeconds, int threads, int subs, Map<Endpoint, Integer> mix,
+                           int batchSize, double hitRatio, double putChangeRatio) {
+    }
+
+    // the rejected requests were answered with 429 by the bulkheads
+    private record EndpointReport(long requests, long errors, long rejected, double throughput,
+                                  double p50Millis, double p95Millis, double p99Millis, double maxMillis) {
+    }
+
+    private record Report(String commit, String date, Options options, Map<Endpoint, EndpointReport> endpoints) {
+    }
+
+    private static String option(String name, String defaultValue) {
+        return System.getProperty("loadtest." + name, defaultValue);
+    }
+
+    private static Options options() {
+        Map<Endpoint, Integer> mix = new EnumMap<>(Endpoint.class);
+        for (String weight : option("mix", "put=20,get=50,batch=30").split(",")) {
+            String[] nameAndWeight = weight.split("=");
+            Endpoint endpoint = switch (nameAndWeight[0].trim()) {
+                case "put" -> Endpoint.PUT;
+                case "get" -> Endpoint.GET;
+                case "batch" -> Endpoint.BATCH_GET;
+                default -> throw new IllegalArgumentException("Unknown endpoint in loadtest.mix: " + nameAndWeight[0]);
+            };
+            mix.put(endpoint, Integer.parseInt(nameAndWeight[1].trim()));
+        }
+        return new Options(
+                Integer.parseInt(option("duration", "30")),
+                Integer.parseInt(option("warmup", "10")),
+                Integer.parseInt(option("threads", "16")),
+                Integer.parseInt(option("subs", "10000")),
+                mix,
+                Integer.parseInt(option("batch-size", "50")),
+                // ratio of the subs of the lookups that are stored
+                Double.parseDouble(option("hit-ratio", "0.9")),
+                // ratio of the puts changing the names, the others being unchanged logins
+                Double.parseDouble(option("put-change-ratio", "0.1")));
+    }
+
+    // growable array of the latencies of a thread
+    private static final class Latencies {
+        private long[] nanos = new long[1024];
+        private int count;
+        private long errors;
+        private long rejected;
+
+        void add(long latencyNanos) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = latencyNanos;
+        }
+
+        void addAll(Latencies latencies) {
+            for (int i = 0; i < latencies.count; i++) {
+                add(latencies.nanos[i]);
+            }
+            errors += latencies.errors;
+            rejected += latencies.rejected;
+        }
+
+        EndpointReport report(double durationSeconds) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            return new EndpointReport(count, errors, rejected, count / durationSeconds,
+                    percentileMillis(sorted, 0.50), percentileMillis(sorted, 0.95), percentileMillis(sorted, 0.99),
+                    percentileMillis(sorted, 1));
+        }
+
+        private static double percentileMillis(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = Math.max(0, (int) Math.ceil(percentile * sorted.length) - 1);
+            return sorted[index] / 1_000_000.0;
+        }
+    }
+
+    private Map<String, String> idtoken(String sub, String givenName) {
+        return Map.of("sub", sub, "given_name", givenName, "family_name", "family",
+                "iss", "http://localhost/realms/loadtest", "aud", "loadtest", "nonce", UUID.randomUUID().toString());
+    }
+
+    private List<String> populate(int count) throws IOException {
+        List<String> subs = new ArrayList<>(count);
+        List<UserIdentityEntity> batch = new ArrayList<>(INSERT_BATCH_SIZE);
+        for (int i = 0; i < count; i++) {
+            String sub = UUID.randomUUID().toString();
+            subs.add(sub);
+            UserIdentityEntity userIdentityEntity = new UserIdentityEntity(sub, mapper.writeValueAsString(idtoken(sub, "given")));
+            userIdentityDtoService.deriveNames(userIdentityEntity);
+            batch.add(userIdentityEntity);
+            if (batch.size() == INSERT_BATCH_SIZE || i == count - 1) {
+                userIdentityRepository.upsertAll(batch);
+                batch.clear();
+            }
+        }
+        return subs;
+    }
+
+    @Test
+    void loadTest() throws Exception {
+        Options options = options();
+        List<String> subs = populate(options.subs());
+        LOGGER.info("Load test of {} stored identities with {}", subs.size(), options);
+
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds());
+        long end = measureStart + TimeUnit.SECONDS.toNanos(options.durationSeconds());
+        ExecutorService executor = Executors.newFixedThreadPool(options.threads());
+        List<Future<Map<Endpoint, Latencies>>> workers = new ArrayList<>();
+        for (int i = 0; i < options.threads(); i++) {
+            workers.add(executor.submit(() -> work(options, subs, measureStart, end)));
+        }
+        Map<Endpoint, Latencies> latencies = new EnumMap<>(Endpoint.class);
+        for (Future<Map<Endpoint, Latencies>> worker : workers) {
+            worker.get().forEach((endpoint, workerLatencies) ->
+                    latencies.computeIfAbsent(endpoint, e -> new Latencies()).addAll(workerLatencies));
+        }
+        executor.shutdown();
+
+        Map<Endpoint, EndpointReport> endpoints = new LinkedHashMap<>();
+        latencies.forEach((endpoint, endpointLatencies) -> endpoints.put(endpoint, endpointLatencies.report(options.durationSeconds())));
+        Report report = new Report(commit(), Instant.now().toString(), options, endpoints);
+        endpoints.forEach((endpoint, endpointReport) -> LOGGER.info(
+                "{}: {} requests, {} errors, {} rejected, {} req/s, p50 {} ms, p95 {} ms, p99 {} ms, max {} ms",
+                endpoint, endpointReport.requests(), endpointReport.errors(), endpointReport.rejected(),
+                Math.round(endpointReport.throughput()),
+                endpointReport.p50Millis(), endpointReport.p95Millis(), endpointReport.p99Millis(), endpointReport.maxMillis()));
+        mapper.writer(SerializationFeature.INDENT_OUTPUT).writeValue(Path.of("target", "loadtest-report.json").toFile(), report);
+
+        assertThat(endpoints.values()).allSatisfy(endpointReport -> assertThat(endpointReport.errors()).isZero());
+    }
+
+    private Map<Endpoint, Latencies> work(Options options, List<String> subs, long measureStart, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int totalWeight = options.mix().values().stream().mapToInt(Integer::intValue).sum();
+        Map<Endpoint, Latencies> latencies = new EnumMap<>(Endpoint.class);
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            Endpoint endpoint = null;
+            int weight = random.nextInt(totalWeight);
+            for (Map.Entry<Endpoint, Integer> entry : options.mix().entrySet()) {
+                weight -= entry.getValue();
+                if (weight < 0) {
+                    endpoint = entry.getKey();
+                    break;
+                }
+            }
+            int status;
+            try {
+                status = send(endpoint, options, subs, random);
+            } catch (IOException e) {
+                status = -1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (now >= measureStart) {
+                Latencies endpointLatencies = latencies.computeIfAbsent(endpoint, e -> new Latencies());
+                endpointLatencies.add(System.nanoTime() - now);
+                if (status == HttpStatus.TOO_MANY_REQUESTS.value()) {
+                    endpointLatencies.rejected++;
+                } else if (!isExpected(endpoint, status)) {
+                    endpointLatencies.errors++;
+                }
+            }
+        }
+        return latencies;
+    }
+
+    private String lookedUpSub(Options options, List<String> subs, ThreadLocalRandom random) {
+        return random.nextDouble() < options.hitRatio() ? subs.get(random.nextInt(subs.size())) : "unknown-" + UUID.randomUUID();
+    }
+
+    private static boolean isExpected(Endpoint endpoint, int status) {
+        return switch (endpoint) {
+            case PUT -> status == 200 || status == 202;
+            case GET -> status == 200 || status == 404;
+            case BATCH_GET -> status == 200;
+        };
+    }
+
+    private int send(Endpoint endpoint, Options options, List<String> subs, ThreadLocalRandom random) throws IOException, InterruptedException {
+        String baseUrl = "http://localhost:" + port + "/v1/users/identities";
+        switch (endpoint) {
+            case PUT -> {
+                String sub = subs.get(random.nextInt(subs.size()));
+                String givenName = random.nextDouble() < options.putChangeRatio() ? "given" + random.nextInt() : "given";
+                HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/" + sub))
+                        .header("Content-Type", "application/json")
+                        .PUT(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(idtoken(sub, givenName))))
+                        .build();
+                return httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            }
+            case GET -> {
+                HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/" + lookedUpSub(options, subs, random))).build();
+                return httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            }
+            case BATCH_GET -> {
+                List<String> batch = new ArrayList<>(options.batchSize());
+                for (int i = 0; i < options.batchSize(); i++) {
+                    batch.add(lookedUpSub(options, subs, random));
+                }
+                HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "?subs=" + String.join(",", batch))).build();
+                return httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            }
+            default -> throw new IllegalStateException(endpoint.name());
+        }
+    }
+
+    private static String commit() throws IOException {
+        Properties git = new Properties();
+        try (InputStream properties = UserIdentityLoadTest.class.getResourceAsStream("/git.properties")) {
+            if (properties == null) {
+                return null;
+            }
+            git.load(properties);
+        }
+        String commit = git.getProperty("git.commit.id.abbrev");
+        return "true".equals(git.getProperty("git.dirty")) ? commit + "-dirty" : commit;
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class UserIdentityLookupCoalescerTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final UserIdentityLookupCoalescer coalescer = new UserIdentityLookupCoalescer(meterRegistry);
+
+    private double coalescedCount(String lookup) {
+        return meterRegistry.get("useridentity.lookup.coalesced").tag("lookup", lookup).counter().count();
+    }
+
+    // loads of foo1 blocked until released, the loading thread is returned when the load has started
+    private CompletableFuture<Optional<UserIdentity>> startBlockedLoad(CountDownLatch release, AtomicInteger loads) throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Optional<UserIdentity>> result = CompletableFuture.supplyAsync(() -> coalescer.load("foo1", () -> {
+            loads.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Optional.of(new UserIdentity("foo1", "bar1", "baz1"));
+        }));
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        return result;
+    }
+
+    @Test
+    void testSingleLookups() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<Optional<UserIdentity>> first = startBlockedLoad(release, loads);
+        CompletableFuture<Optional<UserIdentity>> second = CompletableFuture.supplyAsync(() -> coalescer.load("foo1", () -> {
+            loads.incrementAndGet();
+            return Optional.empty();
+        }));
+        // waits for the first lookup
+        while (coalescedCount("single") == 0) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        assertThat(first.get(10, TimeUnit.SECONDS)).contains(new UserIdentity("foo1", "bar1", "baz1"));
+        assertThat(second.get(10, TimeUnit.SECONDS)).contains(new UserIdentity("foo1", "bar1", "baz1"));
+        assertThat(loads.get()).isEqualTo(1);
+        assertThat(meterRegistry.get("useridentity.lookup.inflight").gauge().value()).isZero();
+
+        // not shared once loaded
+        assertThat(coalescer.load("foo1", Optional::empty)).isEmpty();
+    }
+
+    @Test
+    void testBatchLookups() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<Optional<UserIdentity>> single = startBlockedLoad(release, loads);
+
+        try (UserIdentityLookupCoalescer.Claim claim = coalescer.claim(List.of("foo1", "foo2", "foo3"))) {
+            assertThat(claim.getClaimedSubs()).containsExactly("foo2", "foo3");
+            assertThat(claim.getLoadingSubs()).containsExactly("foo1");
+            assertThat(coalescedCount("batch")).isEqualTo(1);
+
+            // the claimed subs are shared with the other lookups
+            CompletableFuture<Optional<UserIdentity>> other = CompletableFuture.supplyAsync(() -> coalescer.load("foo2", Optional::empty));
+            claim.complete("foo2", Optional.of(new UserIdentity("foo2", "bar2", "baz2")));
+            claim.fail("foo3", new UserIdentityException("invalid idtoken"));
+            assertThat(other.get(10, TimeUnit.SECONDS)).contains(new UserIdentity("foo2", "bar2", "baz2"));
+
+            release.countDown();
+            assertThat(claim.join("foo1")).contains(new UserIdentity("foo1", "bar1", "baz1"));
+        }
+        assertThat(single.get(10, TimeUnit.SECONDS)).contains(new UserIdentity("foo1", "bar1", "baz1"));
+        assertThat(meterRegistry.get("useridentity.lookup.inflight").gauge().value()).isZero();
+    }
+
+    @Test
+    void testErrors() {
+        try (UserIdentityLookupCoalescer.Claim claim = coalescer.claim(List.of("foo1"))) {
+            try (UserIdentityLookupCoalescer.Claim other = coalescer.claim(List.of("foo1"))) {
+                claim.fail("foo1", new UserIdentityException("invalid idtoken"));
+                assertThatThrownBy(() -> other.join("foo1")).isInstanceOf(UserIdentityException.class);
+            }
+        }
+
+        // the subs not loaded by an aborted batch fail the lookups waiting for them
+        UserIdentityLookupCoalescer.Claim aborted = coalescer.claim(List.of("foo2"));
+        try (UserIdentityLookupCoalescer.Claim other = coalescer.claim(List.of("foo2"))) {
+            aborted.close();
+            assertThatThrownBy(() -> other.join("foo2")).hasMessageContaining("aborted");
+        }
+    }
+
+    @Test
+    void testForget() {
+        try (UserIdentityLookupCoalescer.Claim claim = coalescer.claim(List.of("foo1"))) {
+            // saved while loading, the next lookups don't wait for the previous identity
+            coalescer.forget(List.of("foo1"));
+            assertThat(coalescer.load("foo1", () -> Optional.of(new UserIdentity("foo1", "bar1", "baz1"))))
+                    .contains(new UserIdentity("foo1", "bar1", "baz1"));
+            assertThat(coalescedCount("single")).isZero();
+        }
+    }
+}
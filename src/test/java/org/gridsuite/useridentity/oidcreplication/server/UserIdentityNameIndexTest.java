@@ -0,0 +1,34 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.junit.jupiter.api.Test;
+
+class UserIdentityNameIndexTest {
+
+    @Test
+    void testEstimatedBytesAfterUpdates() {
+        UserIdentityNameIndex index = new UserIdentityNameIndex();
+        index.put(new UserIdentity("foo1", "bar1", "baz"), true);
+        index.put(new UserIdentity("foo2", "bar2", "baz"), true);
+        // the words of the previous names are removed, baz is still used by foo2
+        for (int i = 0; i < 10; i++) {
+            index.put(new UserIdentity("foo1", "renamed" + i, "baz"), true);
+        }
+        assertThat(index.search("bar", 10)).containsExactly(new UserIdentity("foo2", "bar2", "baz"));
+        assertThat(index.search("renamed", 10)).containsExactly(new UserIdentity("foo1", "renamed9", "baz"));
+
+        UserIdentityNameIndex rebuilt = new UserIdentityNameIndex();
+        rebuilt.put(new UserIdentity("foo1", "renamed9", "baz"), true);
+        rebuilt.put(new UserIdentity("foo2", "bar2", "baz"), true);
+        assertThat(index.estimatedBytes()).isEqualTo(rebuilt.estimatedBytes());
+        assertThat(index.size()).isEqualTo(2);
+    }
+}
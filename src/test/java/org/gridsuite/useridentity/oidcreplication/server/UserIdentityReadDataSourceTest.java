@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cache.CacheManager;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+@SpringBootTest(properties = {
+    "user-identity.read-datasource.enabled=true",
+    "user-identity.read-datasource.lag-query=SELECT seconds FROM replication_lag",
+    // the tests check the lag explicitly
+    "user-identity.read-datasource.lag-check-interval=1h",
+    // the reads go to the primary for max-lag after an invalidation
+    "user-identity.read-datasource.max-lag=2s",
+})
+class UserIdentityReadDataSourceTest {
+
+    private static final String READ_URL = "jdbc:h2:mem:user-identity-read_" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+
+    @TempDir
+    static Path scriptDirectory;
+
+    @DynamicPropertySource
+    static void makeTestDbSuffix(DynamicPropertyRegistry registry) {
+        UUID uuid = UUID.randomUUID();
+        registry.add("testDbSuffix", () -> uuid);
+        registry.add("user-identity.read-datasource.url", () -> READ_URL);
+    }
+
+    @Autowired
+    UserIdentityService userIdentityService;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Autowired
+    CacheManager cacheManager;
+
+    @Autowired
+    ObjectMapper mapper;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    UserIdentityCacheInvalidator userIdentityCacheInvalidator;
+
+    @Value("${user-identity.read-datasource.username}")
+    String readUsername;
+
+    @Value("${user-identity.read-datasource.password}")
+    String readPassword;
+
+    // the read database as a copy of the primary, with the names marked to know where they were read from
+    private void replicate(double lagSeconds) throws Exception {
+        String script = scriptDirectory.resolve("primary.sql").toString();
+        // not read only, from the primary
+        new JdbcTemplate(dataSource).execute("SCRIPT TO '" + script + "'");
+        try (Connection connection = DriverManager.getConnection(READ_URL, readUsername, readPassword);
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+            statement.execute("RUNSCRIPT FROM '" + script + "'");
+            statement.execute("UPDATE user_identities SET first_name = first_name || '-read'");
+            statement.execute("CREATE TABLE replication_lag (seconds DOUBLE)");
+            statement.execute("INSERT INTO replication_lag VALUES (" + lagSeconds + ")");
+        }
+        dataSource.unwrap(UserIdentityReadRoutingDataSource.class).checkLag();
+        cacheManager.getCache(UserIdentityService.USER_IDENTITIES_CACHE).clear();
+    }
+
+    private double connectionsCount(String target) {
+        return meterRegistry.get("useridentity.datasource.connections").tag("target", target).functionCounter().count();
+    }
+
+    @Test
+    void testRouting() throws Exception {
+        userIdentityService.save("foo1", mapper.writeValueAsString(Map.of("given_name", "bar1", "family_name", "baz1")));
+        replicate(0);
+
+        double readCount = connectionsCount("read");
+        assertThat(userIdentityService.getIdentity("foo1")).contains(new UserIdentity("foo1", "bar1-read", "baz1"));
+        assertThat(userIdentityService.getChanges(0, 10).getData()).contains(new UserIdentity("foo1", "bar1-read", "baz1"));
+        assertThat(connectionsCount("read")).isGreaterThan(readCount);
+
+        // the writes stay on the primary
+        userIdentityService.save("foo2", mapper.writeValueAsString(Map.of("given_name", "bar2", "family_name", "baz2")));
+        assertThat(new JdbcTemplate(dataSource).queryForObject("SELECT first_name FROM user_identities WHERE sub = 'foo2'", String.class))
+                .isEqualTo("bar2");
+    }
+
+    @Test
+    void testLag() throws Exception {
+        userIdentityService.save("foo3", mapper.writeValueAsString(Map.of("given_name", "bar3", "family_name", "baz3")));
+        replicate(60);
+
+        double fallbacksCount = meterRegistry.get("useridentity.datasource.read.fallbacks").tag("reason", "unusable").functionCounter().count();
+        assertThat(userIdentityService.getIdentity("foo3")).contains(new UserIdentity("foo3", "bar3", "baz3"));
+        assertThat(meterRegistry.get("useridentity.datasource.read.fallbacks").tag("reason", "unusable").functionCounter().count())
+                .isGreaterThan(fallbacksCount);
+        assertThat(meterRegistry.get("useridentity.datasource.read.lag").gauge().value()).isEqualTo(60);
+
+        replicate(1);
+        assertThat(userIdentityService.getIdentity("foo3")).contains(new UserIdentity("foo3", "bar3-read", "baz3"));
+    }
+
+    @Test
+    void testInvalidation() throws Exception {
+        userIdentityService.save("foo4", mapper.writeValueAsString(Map.of("given_name", "bar4", "family_name", "baz4")));
+        replicate(0);
+        assertThat(userIdentityService.getIdentity("foo4")).contains(new UserIdentity("foo4", "bar4-read", "baz4"));
+
+        // changed by another node, not replicated yet
+        new JdbcTemplate(dataSource).update("UPDATE user_identities SET first_name = 'qux4' WHERE sub = 'foo4'");
+        UserIdentityReadRoutingDataSource routingDataSource = dataSource.unwrap(UserIdentityReadRoutingDataSource.class);
+        double fallbacksCount = meterRegistry.get("useridentity.datasource.read.fallbacks").tag("reason", "invalidation").functionCounter().count();
+        userIdentityCacheInvalidator.onInvalidation(List.of("foo4"), System.currentTimeMillis());
+        assertThat(routingDataSource.isReadingFromPrimary()).isTrue();
+        assertThat(userIdentityService.getIdentity("foo4")).contains(new UserIdentity("foo4", "qux4", "baz4"));
+        assertThat(meterRegistry.get("useridentity.datasource.read.fallbacks").tag("reason", "invalidation").functionCounter().count())
+                .isGreaterThan(fallbacksCount);
+
+        // back to the replica after max-lag
+        while (routingDataSource.isReadingFromPrimary()) {
+            Thread.sleep(50);
+        }
+        replicate(0);
+        assertThat(userIdentityService.getIdentity("foo4")).contains(new UserIdentity("foo4", "qux4-read", "baz4"));
+    }
+
+    @Test
+    void testFailure() throws Exception {
+        String url = "jdbc:h2:mem:user-identity-read-failure_" + UUID.randomUUID();
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement statement = connection.createStatement();
+             UserIdentityReadRoutingDataSource routingDataSource = new UserIdentityReadRoutingDataSource(
+                     // not closed with the routing datasource
+                     new DelegatingDataSource(dataSource), new DriverManagerDataSource(url + ";IFEXISTS=TRUE"), Duration.ofSeconds(5), Duration.ofHours(1),
+                     "SELECT 0")) {
+            routingDataSource.checkLag();
+            assertThat(routingDataSource.isReadUsable()).isTrue();
+
+            // the replica is lost
+            statement.execute("SHUTDOWN");
+            TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+            try (Connection primaryConnection = routingDataSource.getConnection()) {
+                assertThat(primaryConnection.getMetaData().getURL()).doesNotContain("user-identity-read-failure");
+            } finally {
+                TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+            }
+            assertThat(routingDataSource.isReadUsable()).isFalse();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentitiesResult;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentityError;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+@SpringBootTest(properties = {
+    "user-identity.replica.enabled=true",
+    // the tests catch up explicitly
+    "user-identity.replica.catch-up-interval=1h",
+})
+class UserIdentityReplicaTest {
+
+    @TempDir
+    static Path snapshotDirectory;
+
+    @DynamicPropertySource
+    static void makeTestDbSuffix(DynamicPropertyRegistry registry) {
+        UUID uuid = UUID.randomUUID();
+        registry.add("testDbSuffix", () -> uuid);
+        registry.add("user-identity.replica.snapshot-path", () -> snapshotDirectory.resolve("replica.snapshot").toString());
+    }
+
+    @Autowired
+    UserIdentityService userIdentityService;
+
+    @Autowired
+    UserIdentityRepository userIdentityRepository;
+
+    @Autowired
+    UserIdentityDtoService userIdentityDtoService;
+
+    @Autowired
+    UserIdentityReplica userIdentityReplica;
+
+    @Autowired
+    ObjectMapper mapper;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    DataSource dataSource;
+
+    private long lookupsCount() {
+        return meterRegistry.get("useridentity.lookup").timers().stream().mapToLong(timer -> timer.count()).sum();
+    }
+
+    @Test
+    void testReplica() throws Exception {
+        userIdentityService.save("foo1", mapper.writeValueAsString(Map.of("given_name", "bar1", "family_name", "baz1")));
+        // written behind the back of the service, read by the catch-up, with outdated names or an invalid idtoken
+        UserIdentityEntity derived = new UserIdentityEntity("foo2", mapper.writeValueAsString(Map.of("given_name", "bar2", "family_name", "baz2")));
+        userIdentityDtoService.deriveNames(derived);
+        userIdentityRepository.save(derived);
+        userIdentityRepository.save(new UserIdentityEntity("foo3", mapper.writeValueAsString(Map.of("name", "bar3 baz3"))));
+        userIdentityRepository.save(new UserIdentityEntity("foo4", "{invalid"));
+        userIdentityReplica.load();
+
+        long lookupsCount = lookupsCount();
+        assertThat(userIdentityService.getIdentity("foo2")).contains(new UserIdentity("foo2", "bar2", "baz2"));
+        assertThat(userIdentityService.getIdentity("foo3")).contains(new UserIdentity("foo3", "bar3", "baz3"));
+        assertThat(userIdentityService.getIdentity("unknown1")).isEmpty();
+        assertThat(userIdentityService.getIdentities(List.of("foo1", "foo2", "unknown2"))).isEqualTo(new UserIdentitiesResult(
+                Map.of("foo1", new UserIdentity("foo1", "bar1", "baz1"), "foo2", new UserIdentity("foo2", "bar2", "baz2")),
+                Map.of("unknown2", new UserIdentityError("unknown2", "INVALID_USER_ID"))));
+        // the etags too
+        String eTag2 = "\"" + derived.getContentHash() + "-" + userIdentityDtoService.getNamesVersion() + "\"";
+        assertThat(userIdentityService.getIdentityETag("foo2")).contains(eTag2);
+        assertThat(userIdentityService.getIdentityETag("unknown1")).isEmpty();
+        String eTags = userIdentityService.getIdentitiesETag(List.of("foo1", "foo2", "unknown2"));
+        assertThat(lookupsCount()).isEqualTo(lookupsCount);
+
+        // read from the database for its error
+        assertThat(userIdentityReplica.covers("foo4")).isFalse();
+        assertThat(userIdentityService.getIdentities(List.of("foo4")).getErrors()).containsKey("foo4");
+
+        // changed after the load
+        userIdentityService.save("foo1", mapper.writeValueAsString(Map.of("given_name", "bar1bis", "family_name", "baz1")));
+        assertThat(userIdentityReplica.get("foo1")).contains(new UserIdentity("foo1", "bar1bis", "baz1"));
+        UserIdentityEntity changed = userIdentityRepository.findBySub("foo2").orElseThrow();
+        changed.setIdtoken(mapper.writeValueAsString(Map.of("given_name", "bar2bis", "family_name", "baz2")));
+        userIdentityDtoService.deriveNames(changed);
+        userIdentityService.saveAll(List.of(changed));
+        userIdentityRepository.save(new UserIdentityEntity("foo5", mapper.writeValueAsString(Map.of("name", "bar5 baz5"))));
+        assertThat(userIdentityReplica.catchUp()).isPositive();
+        assertThat(userIdentityReplica.get("foo2")).contains(new UserIdentity("foo2", "bar2bis", "baz2"));
+        assertThat(userIdentityService.getIdentitiesETag(List.of("foo1", "foo2", "unknown2"))).isNotEqualTo(eTags);
+        assertThat(userIdentityReplica.get("foo5")).contains(new UserIdentity("foo5", "bar5", "baz5"));
+        assertThat(userIdentityReplica.catchUp()).isZero();
+        assertThat(meterRegistry.get("useridentity.replica.count").gauge().value()).isEqualTo(userIdentityRepository.count());
+    }
+
+    private long saveBehindTheService(String sub, String firstName) throws Exception {
+        UserIdentityEntity userIdentityEntity = new UserIdentityEntity(sub,
+                mapper.writeValueAsString(Map.of("given_name", firstName, "family_name", "baz")));
+        userIdentityDtoService.deriveNames(userIdentityEntity);
+        userIdentityRepository.save(userIdentityEntity);
+        return userIdentityRepository.findBySub(sub).orElseThrow().getChangeSeq();
+    }
+
+    private void setChangedAt(String sub, Instant changedAt) {
+        new JdbcTemplate(dataSource).update("UPDATE user_identities SET changed_at = ? WHERE sub = ?", Timestamp.from(changedAt), sub);
+    }
+
+    @Test
+    void testLateChanges() throws Exception {
+        userIdentityReplica.load();
+        long late1ChangeSeq = saveBehindTheService("late1", "bar1");
+        long late2ChangeSeq = saveBehindTheService("late2", "bar2");
+        // late1 not settled yet, as if its transaction was still committing
+        setChangedAt("late1", Instant.now().plus(Duration.ofHours(1)));
+
+        // applied, but the change seq stays before late1
+        userIdentityReplica.catchUp();
+        assertThat(userIdentityReplica.get("late2")).contains(new UserIdentity("late2", "bar2", "baz"));
+        assertThat(meterRegistry.get("useridentity.replica.change.seq").gauge().value()).isLessThan(late1ChangeSeq);
+
+        // the change committed late with its lower change seq is read again
+        new JdbcTemplate(dataSource).update("UPDATE user_identities SET first_name = ? WHERE sub = ?", "bar1late", "late1");
+        setChangedAt("late1", Instant.now().minus(Duration.ofMinutes(1)));
+        userIdentityReplica.catchUp();
+        assertThat(userIdentityReplica.get("late1")).contains(new UserIdentity("late1", "bar1late", "baz"));
+        assertThat(meterRegistry.get("useridentity.replica.change.seq").gauge().value()).isEqualTo(late2ChangeSeq);
+    }
+
+    @Test
+    void testSnapshot() throws Exception {
+        userIdentityService.save("foo6", mapper.writeValueAsString(Map.of("given_name", "bar6", "family_name", "baz6")));
+        userIdentityReplica.load();
+        userIdentityReplica.writeSnapshot();
+
+        Path snapshotPath = snapshotDirectory.resolve("replica.snapshot");
+        UserIdentityReplicaTable table = UserIdentityReplicaTable.readSnapshot(snapshotPath,
+                userIdentityDtoService.getNamesVersion()).orElseThrow();
+        assertThat(table.get("foo6")).map(UserIdentityReplicaTable.Entry::userIdentity).contains(new UserIdentity("foo6", "bar6", "baz6"));
+        assertThat(table.getChangeSeq()).isGreaterThanOrEqualTo(userIdentityRepository.findBySub("foo6").orElseThrow().getChangeSeq());
+
+        // derived with other rules
+        assertThat(UserIdentityReplicaTable.readSnapshot(snapshotPath, userIdentityDtoService.getNamesVersion() + 1)).isEmpty();
+
+        // the loads restart from the snapshot
+        userIdentityService.save("foo7", mapper.writeValueAsString(Map.of("given_name", "bar7", "family_name", "baz7")));
+        userIdentityReplica.load();
+        assertThat(userIdentityReplica.get("foo6")).contains(new UserIdentity("foo6", "bar6", "baz6"));
+        assertThat(userIdentityReplica.get("foo7")).contains(new UserIdentity("foo7", "bar7", "baz7"));
+
+        byte[] bytes = Files.readAllBytes(snapshotPath);
+        Path truncatedPath = snapshotDirectory.resolve("truncated.snapshot");
+        Files.write(truncatedPath, Arrays.copyOf(bytes, bytes.length - 3));
+        assertThatThrownBy(() -> UserIdentityReplicaTable.readSnapshot(truncatedPath, userIdentityDtoService.getNamesVersion()))
+                .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void testTable() throws Exception {
+        UserIdentityReplicaTable table = new UserIdentityReplicaTable();
+        List<UserIdentityReplicaTable.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            // shared first names, some rows without content hash
+            entries.add(new UserIdentityReplicaTable.Entry(
+                    new UserIdentity("sub" + i, "first" + i % 100, i % 10 == 0 ? null : "last" + i),
+                    i % 7 == 0 ? null : "%064x".formatted(i)));
+        }
+        table.putAll(entries, List.of("invalid"), 42);
+        table.putAll(List.of(new UserIdentityReplicaTable.Entry(new UserIdentity("sub1", "first1bis", "last1"), "%064x".formatted(-1))),
+                List.of(), 0);
+        assertThat(table.size()).isEqualTo(10001);
+        assertThat(table.getChangeSeq()).isEqualTo(42);
+        assertThat(table.get("sub1")).contains(new UserIdentityReplicaTable.Entry(new UserIdentity("sub1", "first1bis", "last1"),
+                "%064x".formatted(-1)));
+        assertThat(table.get("sub20")).contains(new UserIdentityReplicaTable.Entry(new UserIdentity("sub20", "first20", null),
+                "%064x".formatted(20)));
+        assertThat(table.get("sub9999")).contains(entries.get(9999));
+        assertThat(table.get("sub7")).map(UserIdentityReplicaTable.Entry::contentHash).isEmpty();
+        assertThat(table.get("unknown")).isEmpty();
+        assertThat(table.get("invalid")).isEmpty();
+        assertThat(table.isInvalid("invalid")).isTrue();
+        assertThat(table.isInvalid("sub1")).isFalse();
+
+        Path snapshotPath = snapshotDirectory.resolve("table.snapshot");
+        table.writeSnapshot(snapshotPath, 1);
+        UserIdentityReplicaTable read = UserIdentityReplicaTable.readSnapshot(snapshotPath, 1).orElseThrow();
+        assertThat(read.size()).isEqualTo(10001);
+        assertThat(read.getChangeSeq()).isEqualTo(42);
+        for (int i = 2; i < 10000; i++) {
+            assertThat(read.get("sub" + i)).contains(entries.get(i));
+        }
+        assertThat(read.get("sub1")).isEqualTo(table.get("sub1"));
+        assertThat(read.isInvalid("invalid")).isTrue();
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2024, RTE (http://www.rte-france.com)
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package org.gridsuite.useridentity.oidcreplication.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.Map;
+import java.util.UUID;
+
+import org.gridsuite.useridentity.oidcreplication.server.dto.UserIdentity;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+@SpringBootTest(properties = {
+    "user-identity.write-behind.enabled=true",
+    "user-identity.write-behind.max-batch-size=2",
+    "user-identity.write-behind.flush-interval=1h", // flushed by hand or by size
+})
+@AutoConfigureMockMvc
+class UserIdentityWriteBehindTest {
+
+    @DynamicPropertySource
+    static void makeTestDbSuffix(DynamicPropertyRegistry registry) {
+        UUID uuid = UUID.randomUUID();
+        registry.add("testDbSuffix", () -> uuid);
+    }
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    UserIdentityRepository userIdentityRepository;
+
+    @Autowired
+    UserIdentityWriteBehindBuffer userIdentityWriteBehindBuffer;
+
+    @Autowired
+    ObjectMapper mapper;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Test
+    void shouldBufferSaves() throws Exception {
+        mockMvc.perform(put("/v1/users/identities/foo1")
+                    .content(mapper.writeValueAsString(Map.of("given_name", "old", "family_name", "old"))))
+                .andExpect(status().isAccepted());
+        // replaces the previous pending save
+        mockMvc.perform(put("/v1/users/identities/foo1")
+                    .content(mapper.writeValueAsString(Map.of("given_name", "bar1", "family_name", "baz1"))))
+                .andExpect(status().isAccepted())
+                .andExpect(content().json(mapper.writeValueAsString(new UserIdentity("foo1", "bar1", "baz1"))));
+        assertThat(userIdentityRepository.findBySub("foo1")).isEmpty();
+
+        // validation is still synchronous
+        assertThatThrownBy(() -> mockMvc.perform(put("/v1/users/identities/errjson").content("{]")))
+                .hasRootCauseInstanceOf(JsonProcessingException.class);
+        assertThat(userIdentityWriteBehindBuffer.getPending("errjson")).isEmpty();
+
+        // pending saves are visible
+        mockMvc.perform(get("/v1/users/identities?subs=foo1"))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"data\":{\"foo1\":{\"sub\":\"foo1\",\"firstName\":\"bar1\",\"lastName\":\"baz1\"}}}"));
+
+        userIdentityWriteBehindBuffer.flush();
+        assertThat(userIdentityRepository.findBySub("foo1")).get()
+                .extracting(UserIdentityEntity::getFirstName).isEqualTo("bar1");
+        assertThat(userIdentityWriteBehindBuffer.getPending("foo1")).isEmpty();
+        assertThat(meterRegistry.get("useridentity.writebehind.batch.size").summary().totalAmount()).isEqualTo(1);
+        assertThat(meterRegistry.get("useridentity.writebehind.queue.size").gauge().value()).isZero();
+    }
+
+    @Test
+    void shouldDropTheEntitiesThatCannotBeWritten() throws Exception {
+        // too long for the column, rejected before being buffered
+        String longName = "a".repeat(UserIdentityEntity.NAME_MAX_LENGTH + 1);
+        assertThatThrownBy(() -> mockMvc.perform(put("/v1/users/identities/toolong")
+                    .content(mapper.writeValueAsString(Map.of("given_name", longName, "family_name", "baz")))))
+                .hasRootCauseInstanceOf(UserIdentityException.class);
+        assertThat(userIdentityWriteBehindBuffer.getPending("toolong")).isEmpty();
+
+        // added without the validation, fails the batch
+        UserIdentityEntity invalid = new UserIdentityEntity("invalid", "x".repeat(UserIdentityEntity.IDTOKEN_MAX_LENGTH + 1));
+        invalid.setNamesVersion(0);
+        assertThat(userIdentityWriteBehindBuffer.add(invalid)).isTrue();
+        mockMvc.perform(put("/v1/users/identities/valid")
+                    .content(mapper.writeValueAsString(Map.of("given_name", "bar", "family_name", "baz"))))
+                .andExpect(status().isAccepted());
+
+        // the valid one is written alone, the other one is dropped
+        userIdentityWriteBehindBuffer.flush();
+        assertThat(userIdentityRepository.findBySub("valid")).isPresent();
+        assertThat(userIdentityRepository.findBySub("invalid")).isEmpty();
+        assertThat(userIdentityWriteBehindBuffer.getPending("valid")).isEmpty();
+        assertThat(userIdentityWriteBehindBuffer.getPending("invalid")).isEmpty();
+        assertThat(meterRegistry.get("useridentity.writebehind.dropped").counter().count()).isEqualTo(1);
+    }
+}